@@ -0,0 +1,371 @@
+package gitio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import universe.Junction;
+import universe.Universe;
+
+/**
+ * This class commits changed junctions to the local repository on a
+ * background thread, so that callers serving players never wait on git. <br>
+ * <br>
+ * Changes are batched: after the first change arrives, the committer waits
+ * for the batch delay to collect more, then writes and commits them. Each
+ * change is recorded as the junction was when it was submitted, and
+ * consecutive changes by the same author share a commit, so every author is
+ * credited with exactly their own changes. <br>
+ * <br>
+ * If a WriteAheadLog is set, changes made through apply() are logged before
+ * they are applied and acknowledged, every commit records the log's ID and
+ * the sequence number of the last event it contains, and the log is
+ * truncated once a batch is committed. On startup, recover() loads the
+ * Universe from the last commit and replays the events git is missing.
+ */
+public class AsyncCommitter {
+	/** Default time to collect changes before committing them. */
+	public static final long DEFAULT_BATCH_DELAY_MILLIS = 1000;
+	/** Domain of the e-mail addresses given to commits. */
+	static final String EMAIL_DOMAIN = "users.gitquest.invalid";
+	/**
+	 * Starts the commit message line recording the last logged event a commit
+	 * holds, followed by the log's ID and the event's sequence number.
+	 */
+	static final String SEQUENCE_TRAILER = "Log-Sequence: ";
+
+	/** A junction as it was right after an author changed it. */
+	private static class Change {
+		final String author;
+		final int junctionID;
+		final String text;
+		/** Sequence number of the logged event, or 0 if it wasn't logged. */
+		final long sequence;
+
+		Change(String author, int junctionID, String text, long sequence) {
+			this.author = author;
+			this.junctionID = junctionID;
+			this.text = text;
+			this.sequence = sequence;
+		}
+	}
+
+	private final GitRequestHandler handler;
+	private final long batchDelayMillis;
+	private WriteAheadLog log = null;
+	/** Changes submitted since the last flush, oldest first. */
+	private ArrayList<Change> pending = new ArrayList<Change>();
+	private Thread thread = null;
+	private boolean stopping = false;
+
+	/**
+	 * @param handler
+	 *            the handler of the repository to commit to.
+	 * @param batchDelayMillis
+	 *            how long to collect changes before committing them.
+	 */
+	public AsyncCommitter(GitRequestHandler handler, long batchDelayMillis)
+			throws IllegalArgumentException {
+		if (batchDelayMillis < 0)
+			throw new IllegalArgumentException();
+		this.handler = handler;
+		this.batchDelayMillis = batchDelayMillis;
+	}
+
+	public AsyncCommitter(GitRequestHandler handler) {
+		this(handler, DEFAULT_BATCH_DELAY_MILLIS);
+	}
+
+	/**
+	 * Makes apply() log every event before acknowledging it. Should be called
+	 * before start(), followed by recover(). Also makes git force new objects
+	 * and ref updates to disk, since the log is truncated as soon as they are
+	 * committed.
+	 */
+	public synchronized void setLog(WriteAheadLog log) {
+		this.log = log;
+		StoredConfig config = handler.getRepository().getConfig();
+		if (!config.getBoolean("core", "fsyncobjectfiles", false)
+				|| !config.getBoolean("core", "fsyncreffiles", false)) {
+			config.setBoolean("core", null, "fsyncobjectfiles", true);
+			config.setBoolean("core", null, "fsyncreffiles", true);
+			try {
+				config.save();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Loads the Universe from the junction files in HEAD, replays onto it the
+	 * logged events that are not yet in git (if a log is set), and queues
+	 * those to be committed. Junction files that can't be parsed are skipped,
+	 * and events on junctions HEAD doesn't have are dropped.
+	 *
+	 * @return the recovered Universe, to be served from now on.
+	 */
+	public synchronized Universe recover() throws IOException {
+		Universe universe = JunctionFiles.read(handler.getRepository(),
+				Constants.HEAD);
+		if (log == null)
+			return universe;
+		long committed = getLastCommittedSequence();
+		for (WriteAheadLog.Event event : log.getRecoveredEvents()) {
+			if (event.getSequence() <= committed)
+				continue;
+			Junction junction = universe.getJunction(event.getJunctionID());
+			if (junction == null)
+				continue;
+			event.applyTo(junction);
+			pending.add(new Change(event.getAuthor(), junction.getID(),
+					JunctionFiles.toText(junction), event.getSequence()));
+		}
+		notifyAll();
+		return universe;
+	}
+
+	/**
+	 * Starts the background thread. Calling this while already started has no
+	 * effect.
+	 */
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		stopping = false;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "gitquest-committer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Commits the pending changes and stops the background thread, waiting
+	 * for it to finish.
+	 */
+	public void stop() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			t = thread;
+			stopping = true;
+			notifyAll();
+		}
+		if (t != null)
+			t.join();
+		synchronized (this) {
+			thread = null;
+		}
+	}
+
+	/**
+	 * Queues a changed junction to be committed under the given author's
+	 * name. The junction is recorded as it is now; returns without waiting
+	 * for git. The change is not logged; use apply() for that.
+	 */
+	public synchronized void submit(Junction junction, String author) {
+		pending.add(new Change(author, junction.getID(), JunctionFiles
+				.toText(junction), 0));
+		notifyAll();
+	}
+
+	/**
+	 * Logs the event (if a log is set), then applies it to the junction and
+	 * queues the change to be committed under the event's author. Returns
+	 * without waiting; the listener is told once the event is durable and
+	 * applied, immediately if there is no log. If the event can't be logged,
+	 * the listener is told of the failure and the junction is left unchanged.
+	 *
+	 * @throws IOException
+	 *             if the log refuses the event; the junction is left
+	 *             unchanged.
+	 */
+	public void apply(final Junction junction, WriteAheadLog.Event event,
+			final WriteAheadLog.Listener listener) throws IOException {
+		WriteAheadLog l;
+		synchronized (this) {
+			l = log;
+		}
+		if (l == null) {
+			enqueue(junction, event);
+			if (listener != null)
+				listener.onDurable(event, null);
+			return;
+		}
+		// The log calls back in sequence order, so the changes are queued in
+		// the order of their sequence numbers.
+		l.append(event, new WriteAheadLog.Listener() {
+			@Override
+			public void onDurable(WriteAheadLog.Event event,
+					IOException failure) {
+				if (failure == null)
+					enqueue(junction, event);
+				if (listener != null)
+					listener.onDurable(event, failure);
+			}
+		});
+	}
+
+	/**
+	 * Applies the event to the junction and queues the resulting change.
+	 */
+	private synchronized void enqueue(Junction junction,
+			WriteAheadLog.Event event) {
+		event.applyTo(junction);
+		pending.add(new Change(event.getAuthor(), junction.getID(),
+				JunctionFiles.toText(junction), event.getSequence()));
+		notifyAll();
+	}
+
+	private void loop() {
+		while (true) {
+			ArrayList<Change> batch;
+			synchronized (this) {
+				try {
+					while (pending.isEmpty() && !stopping)
+						wait();
+					// Further submits wake this thread up too, so wait out the
+					// full delay.
+					long deadline = System.currentTimeMillis()
+							+ batchDelayMillis;
+					long left;
+					while (!stopping
+							&& (left = deadline - System.currentTimeMillis()) > 0)
+						wait(left);
+				} catch (InterruptedException e) {
+					stopping = true;
+				}
+				batch = pending;
+				pending = new ArrayList<Change>();
+				if (batch.isEmpty() && stopping)
+					return;
+			}
+			List<Change> failed = commit(batch);
+			if (!failed.isEmpty()) {
+				synchronized (this) {
+					// Retry with the next batch, unless shutting down.
+					if (stopping)
+						return;
+					failed.addAll(pending);
+					pending = new ArrayList<Change>(failed);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes and commits a batch of changes, with one commit for each run of
+	 * consecutive changes by the same author, then truncates the log up to
+	 * the last change committed. Stops at the first run that can't be
+	 * committed.
+	 *
+	 * @return the changes that were not committed.
+	 */
+	private List<Change> commit(List<Change> batch) {
+		WriteAheadLog l;
+		synchronized (this) {
+			l = log;
+		}
+		long committed = 0;
+		int start = 0;
+		while (start < batch.size()) {
+			String author = batch.get(start).author;
+			// Maps each junction in the run to its latest state.
+			LinkedHashMap<Integer, String> run = new LinkedHashMap<>();
+			long sequence = 0;
+			int end = start;
+			while (end < batch.size() && batch.get(end).author.equals(author)) {
+				run.put(batch.get(end).junctionID, batch.get(end).text);
+				sequence = Math.max(sequence, batch.get(end).sequence);
+				end++;
+			}
+			try {
+				for (Map.Entry<Integer, String> entry : run.entrySet())
+					JunctionFiles.write(handler.getLocalRepositoryPath(),
+							entry.getKey(), entry.getValue());
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+			String message = "Update junctions " + run.keySet();
+			if (sequence > 0)
+				message += "\n\n" + SEQUENCE_TRAILER + l.getID() + " "
+						+ sequence;
+			// Only the run's own files, so that nothing else in the working
+			// tree is credited to this author.
+			ArrayList<String> paths = new ArrayList<String>();
+			for (Integer id : run.keySet())
+				paths.add(JunctionFiles.getPath(id));
+			if (!handler.stageAndCommit(paths, author, author + "@"
+					+ EMAIL_DOMAIN, message))
+				break;
+			committed = Math.max(committed, sequence);
+			start = end;
+		}
+		if (l != null && committed > 0) {
+			try {
+				l.truncate(committed);
+			} catch (IOException e) {
+				// Harmless: recover() skips events that are already in git.
+				e.printStackTrace();
+			}
+		}
+		return new ArrayList<Change>(batch.subList(start, batch.size()));
+	}
+
+	/**
+	 * Returns the highest sequence number recorded for the log by any commit
+	 * reachable from HEAD. All parents are followed, since another server may
+	 * have merged this one's commits as a second parent. Trailers of other
+	 * logs, e.g. those of other servers pushing to the same remote, are
+	 * ignored.
+	 *
+	 * @throws IOException
+	 *             if no commit has a trailer for the log although the log
+	 *             was truncated, i.e. HEAD has lost commits the log no longer
+	 *             holds the events of.
+	 */
+	private long getLastCommittedSequence() throws IOException {
+		Repository repo = handler.getRepository();
+		ObjectId head = repo.resolve(Constants.HEAD);
+		Pattern trailer = Pattern.compile("^" + SEQUENCE_TRAILER
+				+ Pattern.quote(log.getID()) + " (\\d+)$", Pattern.MULTILINE);
+		long committed = 0;
+		if (head != null) {
+			RevWalk walk = new RevWalk(repo);
+			try {
+				walk.markStart(walk.parseCommit(head));
+				for (RevCommit commit : walk) {
+					Matcher m = trailer.matcher(commit.getFullMessage());
+					if (m.find())
+						committed = Math.max(committed,
+								Long.parseLong(m.group(1)));
+				}
+			} finally {
+				walk.release();
+			}
+		}
+		if (committed > 0)
+			return committed;
+		// Nothing from this log is in git, which is only consistent if
+		// nothing was ever truncated from it.
+		if (log.getBaseSequence() > 1)
+			throw new IOException("no commit holds events of log "
+					+ log.getID() + " up to " + (log.getBaseSequence() - 1));
+		return 0;
+	}
+}
@@ -0,0 +1,375 @@
+package gitio;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * This class keeps a persisted index of which authors touched which junctions,
+ * and in which commits, so that questions like "what did this author write,
+ * and when" don't require walking the whole history. Authors are identified
+ * by their e-mail address, since several people may share a name. <br>
+ * <br>
+ * The index is stored in an append-only file inside the repository's .git
+ * directory (so that it is never staged) and is brought up to date by
+ * update(), which only walks the commits made since the last indexed one. <br>
+ * <br>
+ * Junctions are expected to be stored one per file, named after their ID
+ * (e.g. 42 or 42.json, in any directory). Other files are ignored.
+ */
+public class ContributionIndex {
+	/** Name of the index file, relative to the .git directory. */
+	static final String INDEX_FILE_NAME = "gitquest-contributions";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String TIP = "tip";
+	private static final String COMMIT = "commit";
+
+	/**
+	 * A single indexed commit: who made it, when, and which junctions it
+	 * touched.
+	 */
+	public static class Contribution {
+		private final String commitID;
+		private final String authorName;
+		private final String authorEmail;
+		private final long time;
+		private final Set<Integer> junctionIDs;
+
+		Contribution(String commitID, String authorName, String authorEmail,
+				long time, Set<Integer> junctionIDs) {
+			this.commitID = commitID;
+			this.authorName = authorName;
+			this.authorEmail = authorEmail;
+			this.time = time;
+			this.junctionIDs = Collections.unmodifiableSet(junctionIDs);
+		}
+
+		/** Returns the SHA-1 of the commit, in hexadecimal. */
+		public String getCommitID() {
+			return commitID;
+		}
+
+		/** Returns the author's name, as given to stageAndCommit(). */
+		public String getAuthorName() {
+			return authorName;
+		}
+
+		/** Returns the author's e-mail address, which identifies them. */
+		public String getAuthorEmail() {
+			return authorEmail;
+		}
+
+		/** Returns the author time of the commit, in milliseconds. */
+		public long getTime() {
+			return time;
+		}
+
+		/** Returns the IDs of the junctions changed by the commit. */
+		public Set<Integer> getJunctionIDs() {
+			return junctionIDs;
+		}
+	}
+
+	private final GitRequestHandler handler;
+	/** Maps each author's e-mail to their contributions, oldest first. */
+	private final HashMap<String, ArrayList<Contribution>> byAuthor = new HashMap<>();
+	/** The commits already in the index, so that none is counted twice. */
+	private final HashSet<String> indexedCommits = new HashSet<>();
+	/** The most recent commit indexed, or null if nothing has been indexed. */
+	private String tip = null;
+	/** The index file that was loaded into memory, if any. */
+	private File loadedFile = null;
+
+	/**
+	 * Creates an index for the repository managed by the given handler. The
+	 * index file is read lazily, since the repository may not exist yet.
+	 *
+	 * @param handler
+	 *            the GitRequestHandler whose local repository is indexed.
+	 */
+	ContributionIndex(GitRequestHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Returns the e-mail addresses of all authors found in the index.
+	 */
+	public synchronized Set<String> getAuthors() {
+		load();
+		return new TreeSet<String>(byAuthor.keySet());
+	}
+
+	/**
+	 * Returns the contributions of the given author, oldest first. Returns an
+	 * empty list for unknown authors.
+	 *
+	 * @param email
+	 *            the author's e-mail address, as given to stageAndCommit().
+	 */
+	public synchronized List<Contribution> getContributions(String email) {
+		load();
+		ArrayList<Contribution> list = byAuthor.get(email);
+		if (list == null)
+			return new ArrayList<Contribution>();
+		return new ArrayList<Contribution>(list);
+	}
+
+	/**
+	 * Returns the IDs of every junction the given author has touched.
+	 *
+	 * @param email
+	 *            the author's e-mail address, as given to stageAndCommit().
+	 */
+	public synchronized Set<Integer> getJunctionIDs(String email) {
+		TreeSet<Integer> ids = new TreeSet<Integer>();
+		for (Contribution c : getContributions(email))
+			ids.addAll(c.getJunctionIDs());
+		return ids;
+	}
+
+	/**
+	 * Indexes every commit reachable from HEAD that is not indexed yet, and
+	 * appends them to the index file. If the last indexed commit no longer
+	 * exists (e.g. the repository was re-cloned) or is no longer part of
+	 * HEAD's history (e.g. after a hard reset), the index is rebuilt from
+	 * scratch.
+	 */
+	public synchronized void update() throws IOException {
+		Repository repo = handler.getRepository();
+		load();
+		ObjectId head = repo.resolve(Constants.HEAD);
+		if (head == null || head.name().equals(tip))
+			return;
+		ArrayList<Contribution> found = new ArrayList<Contribution>();
+		RevWalk walk = new RevWalk(repo);
+		try {
+			RevCommit headCommit = walk.parseCommit(head);
+			if (tip != null) {
+				try {
+					RevCommit tipCommit = walk.parseCommit(ObjectId
+							.fromString(tip));
+					// After a reset, the old tip's commits may no longer be
+					// in the history; rebuild rather than keep crediting them.
+					if (walk.isMergedInto(tipCommit, headCommit)) {
+						walk.reset();
+						walk.markUninteresting(tipCommit);
+					} else {
+						walk.reset();
+						clear();
+						deleteFile();
+					}
+				} catch (MissingObjectException e) {
+					clear();
+					deleteFile();
+				}
+			}
+			walk.markStart(headCommit);
+			for (RevCommit commit : walk) {
+				if (indexedCommits.contains(commit.name()))
+					continue;
+				// Merges only combine the work of other commits, which are
+				// indexed on their own.
+				if (commit.getParentCount() > 1)
+					continue;
+				found.add(readCommit(repo, walk, commit));
+			}
+		} finally {
+			walk.release();
+		}
+		// RevWalk returns the newest commits first.
+		Collections.reverse(found);
+		append(found, head.name());
+		for (Contribution c : found)
+			add(c);
+		tip = head.name();
+	}
+
+	/**
+	 * Lists the junctions changed by a (non-merge) commit, by comparing its
+	 * tree with that of its parent.
+	 */
+	private Contribution readCommit(Repository repo, RevWalk walk,
+			RevCommit commit) throws IOException {
+		TreeSet<Integer> ids = new TreeSet<Integer>();
+		TreeWalk tw = new TreeWalk(repo);
+		try {
+			if (commit.getParentCount() == 0)
+				tw.addTree(new EmptyTreeIterator());
+			else
+				tw.addTree(walk.parseCommit(commit.getParent(0)).getTree());
+			tw.addTree(commit.getTree());
+			tw.setRecursive(true);
+			tw.setFilter(TreeFilter.ANY_DIFF);
+			while (tw.next()) {
+				Integer id = junctionIDForFile(tw.getNameString());
+				if (id != null)
+					ids.add(id);
+			}
+		} finally {
+			tw.release();
+		}
+		// Tabs separate the fields of the index file.
+		PersonIdent ident = commit.getAuthorIdent();
+		return new Contribution(commit.name(), ident.getName().replace('\t',
+				' '), ident.getEmailAddress().replace('\t', ' '), ident
+				.getWhen().getTime(), ids);
+	}
+
+	/**
+	 * Returns the ID of the junction stored in a file with the given name, or
+	 * null if the file doesn't hold a junction.
+	 *
+	 * @param name
+	 *            the file name, without its directory.
+	 */
+	static Integer junctionIDForFile(String name) {
+		int dot = name.indexOf('.');
+		if (dot >= 0)
+			name = name.substring(0, dot);
+		if (!name.matches("\\d{1,9}"))
+			return null;
+		return Integer.valueOf(name);
+	}
+
+	/**
+	 * Reads the index file into memory, unless it has been read already.
+	 * Commit records only count once the tip line written after them has been
+	 * read. If any line is malformed or anything follows the last tip (e.g.
+	 * an append cut short by a crash), the file is discarded and rebuilt by
+	 * the next update(), since later appends would otherwise continue a torn
+	 * line.
+	 */
+	private void load() {
+		File file = getFile();
+		if (file.equals(loadedFile))
+			return;
+		clear();
+		loadedFile = file;
+		if (!file.exists())
+			return;
+		// Records read since the last tip line.
+		ArrayList<Contribution> unconfirmed = new ArrayList<Contribution>();
+		boolean torn = false;
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), UTF8));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] fields = line.split("\t", -1);
+					if (fields.length == 2 && fields[0].equals(TIP)
+							&& ObjectId.isId(fields[1])) {
+						for (Contribution c : unconfirmed)
+							add(c);
+						unconfirmed.clear();
+						tip = fields[1];
+					} else if (fields.length == 6 && fields[0].equals(COMMIT))
+						unconfirmed.add(parseContribution(fields));
+					else
+						torn = true;
+				}
+			} finally {
+				in.close();
+			}
+			if (torn || !unconfirmed.isEmpty()) {
+				clear();
+				deleteFile();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (NumberFormatException e) {
+			// The file is damaged beyond the last good tip; rebuild it.
+			e.printStackTrace();
+			clear();
+			deleteFile();
+		}
+	}
+
+	private static Contribution parseContribution(String[] fields) {
+		TreeSet<Integer> ids = new TreeSet<Integer>();
+		if (fields[5].length() > 0)
+			for (String id : fields[5].split(","))
+				ids.add(Integer.valueOf(id));
+		return new Contribution(fields[1], fields[3], fields[4],
+				Long.parseLong(fields[2]), ids);
+	}
+
+	/**
+	 * Appends the given contributions to the index file, followed by the new
+	 * tip. The tip is written last, so that a crash part way through only
+	 * causes the same commits to be indexed again.
+	 */
+	private void append(List<Contribution> contributions, String newTip)
+			throws IOException {
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(getFile(), true), UTF8));
+		try {
+			for (Contribution c : contributions) {
+				StringBuilder ids = new StringBuilder();
+				for (Integer id : c.getJunctionIDs()) {
+					if (ids.length() > 0)
+						ids.append(',');
+					ids.append(id);
+				}
+				out.write(COMMIT + "\t" + c.getCommitID() + "\t" + c.getTime()
+						+ "\t" + c.getAuthorName() + "\t" + c.getAuthorEmail()
+						+ "\t" + ids + "\n");
+			}
+			out.write(TIP + "\t" + newTip + "\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private void add(Contribution c) {
+		if (!indexedCommits.add(c.getCommitID()))
+			return;
+		ArrayList<Contribution> list = byAuthor.get(c.getAuthorEmail());
+		if (list == null) {
+			list = new ArrayList<Contribution>();
+			byAuthor.put(c.getAuthorEmail(), list);
+		}
+		list.add(c);
+	}
+
+	private void clear() {
+		byAuthor.clear();
+		indexedCommits.clear();
+		tip = null;
+	}
+
+	private void deleteFile() {
+		File file = getFile();
+		if (file.exists() && !file.delete())
+			System.err.println("Could not delete " + file);
+	}
+
+	private File getFile() {
+		return new File(handler.getLocalRepositoryPath(), ".git/"
+				+ INDEX_FILE_NAME);
+	}
+}
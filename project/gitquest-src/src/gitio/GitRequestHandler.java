@@ -2,7 +2,10 @@ package gitio;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
 
+import org.eclipse.jgit.api.AddCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.CanceledException;
 import org.eclipse.jgit.api.errors.CheckoutConflictException;
@@ -22,6 +25,8 @@ import org.eclipse.jgit.internal.storage.file.FileRepository;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryCache;
 import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
 import org.eclipse.jgit.util.FS;
 
 //TODO: actually deal with exceptions.
@@ -62,6 +67,11 @@ public class GitRequestHandler {
 	 * repository, as specified by the user in setSSHKey().
 	 */
 	private File userSpecifiedSSHKeyPath = null;
+	/** Repacks the local repository in the background as objects pile up. */
+	private final MaintenanceScheduler maintenance = new MaintenanceScheduler(
+			this);
+	/** Records which authors touched which junctions, commit by commit. */
+	private final ContributionIndex contributions = new ContributionIndex(this);
 
 	
 	
@@ -111,7 +121,9 @@ public class GitRequestHandler {
 	 * when connecting with the remote repository. Unless the repository allows
 	 * anonymous commits, a username and password will have to be specified with
 	 * setCredentials(). remotePath should be of the form https://*, or else an
-	 * IllegalArgumentException will be thrown.
+	 * IllegalArgumentException will be thrown. A local repository, given as
+	 * file://*, is also accepted in this mode (e.g. a bare repository used for
+	 * testing).
 	 * 
 	 * @author NaOH
 	 * @version 0.0.1
@@ -132,7 +144,7 @@ public class GitRequestHandler {
 			} else
 				throw new IllegalArgumentException();
 		} else {
-			if (remotePath.matches("https://.+")) {
+			if (remotePath.matches("(https|file)://.+")) {
 				useSSH = false;
 				this.remoteHTTPSPath = remotePath;
 			} else
@@ -196,10 +208,10 @@ public class GitRequestHandler {
 
 	/**
 	 * Stages all files in the local git repository and commits them with the
-	 * given metadata.
+	 * given metadata. Returns true iff the commit was made.
 	 * 
 	 * @author NaOH
-	 * @version 0.0.2
+	 * @version 0.0.3
 	 * @param author
 	 *            The alias of the author for the commit.
 	 * @param email
@@ -208,10 +220,28 @@ public class GitRequestHandler {
 	 *            is the commit message. An empty message will cause the commit
 	 *            to fail.
 	 */
-	public void stageAndCommit(String author, String email, String message) {
+	public boolean stageAndCommit(String author, String email, String message) {
+		return stageAndCommit(Collections.singleton("."), author, email,
+				message);
+	}
+
+	/**
+	 * Like stageAndCommit(String, String, String), but only stages the given
+	 * paths, so that unrelated changes in the working tree are left out of the
+	 * commit.
+	 * 
+	 * @param paths
+	 *            the files or directories to stage, relative to the root of
+	 *            the repository and separated by '/'.
+	 */
+	public boolean stageAndCommit(Collection<String> paths, String author,
+			String email, String message) {
 		// TODO tackle the daunting number of exceptions in this method.
 		try {
-			git.add().addFilepattern(".").call();
+			AddCommand add = git.add();
+			for (String path : paths)
+				add.addFilepattern(path);
+			add.call();
 		} catch (NoFilepatternException e) {
 			e.printStackTrace();
 		} catch (GitAPIException e) {
@@ -220,7 +250,9 @@ public class GitRequestHandler {
 		try {
 			git.commit().setMessage(message).setAuthor(author, email)
 					.setCommitter(author, email).call();
-			return;
+			updateContributionIndex();
+			maintenance.requestCheck();
+			return true;
 		} catch (NoHeadException e) {
 			e.printStackTrace();
 		} catch (NoMessageException e) {
@@ -242,6 +274,7 @@ public class GitRequestHandler {
 		} catch (GitAPIException e) {
 			e.printStackTrace();
 		}
+		return false;
 	}
 
 	/**
@@ -257,6 +290,7 @@ public class GitRequestHandler {
 		try {
 			git = Git.cloneRepository().setURI(getRemotePath())
 					.setDirectory(new File(localPath)).call();
+			updateContributionIndex();
 		} catch (InvalidRemoteException e) {
 			e.printStackTrace();
 		} catch (TransportException e) {
@@ -267,12 +301,14 @@ public class GitRequestHandler {
 	}
 
 	/**
-	 * Downloads the latest updates to the remote git repository.
+	 * Downloads the latest updates to the remote git repository. Returns true
+	 * iff they were merged; if the merge conflicted, the repository is left
+	 * in the merging state for the caller to resolve or reset.
 	 * 
 	 * @author NaOH
-	 * @version 0.0.5
+	 * @version 0.0.6
 	 */
-	public void pullFromRemote() throws IOException {
+	public boolean pullFromRemote() throws IOException {
 		// TODO: handle password-protected remote https repositories.
 		try {
 			// TODO: technically, this should occur in
@@ -288,7 +324,11 @@ public class GitRequestHandler {
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
-			git.pull().call();
+			if (!git.pull().call().isSuccessful())
+				return false;
+			updateContributionIndex();
+			maintenance.requestCheck();
+			return true;
 		} catch (WrongRepositoryStateException e) {
 			e.printStackTrace();
 		} catch (InvalidConfigurationException e) {
@@ -308,18 +348,27 @@ public class GitRequestHandler {
 		} catch (GitAPIException e) {
 			e.printStackTrace();
 		}
+		return false;
 	}
 
 	/**
 	 * Uploads the latest local updates to the remote git repository. Must be
-	 * called after stageAndCommit().
+	 * called after stageAndCommit(). Returns true iff the remote accepted every
+	 * update; a push is typically rejected because someone else pushed first,
+	 * in which case pullFromRemote() should be called before trying again.
 	 * 
 	 * @author NaOH
-	 * @version 0.0.1
+	 * @version 0.0.2
 	 */
-	public void pushToRemote() throws IOException {
+	public boolean pushToRemote() throws IOException {
 		try {
-			git.push().setRemote(getRemotePath()).call();
+			for (PushResult result : git.push().setRemote(getRemotePath())
+					.call())
+				for (RemoteRefUpdate update : result.getRemoteUpdates())
+					if (update.getStatus() != RemoteRefUpdate.Status.OK
+							&& update.getStatus() != RemoteRefUpdate.Status.UP_TO_DATE)
+						return false;
+			return true;
 		} catch (InvalidRemoteException e) {
 			e.printStackTrace();
 		} catch (TransportException e) {
@@ -328,6 +377,7 @@ public class GitRequestHandler {
 		} catch (GitAPIException e) {
 			e.printStackTrace();
 		}
+		return false;
 	}
 
 	/**
@@ -366,6 +416,42 @@ public class GitRequestHandler {
 		// TODO implement username and password authentication.
 	}
 
+	/**
+	 * Returns the scheduler that repacks the local repository. It is not
+	 * started by default; call start() on it to enable background maintenance.
+	 */
+	public MaintenanceScheduler getMaintenanceScheduler() {
+		return maintenance;
+	}
+
+	/**
+	 * Returns the index of contributions made to the local repository, which
+	 * is kept up to date by stageAndCommit(), cloneFromRemote() and
+	 * pullFromRemote().
+	 */
+	public ContributionIndex getContributionIndex() {
+		return contributions;
+	}
+
+	/**
+	 * Returns the repository currently used by this handler, which changes
+	 * after cloneFromRemote() or createNewRepository().
+	 */
+	Repository getRepository() {
+		return git.getRepository();
+	}
+
+	/**
+	 * Indexes the commits made since the last update of the contribution index.
+	 */
+	private void updateContributionIndex() {
+		try {
+			contributions.update();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Returns a String containing the path to the remote repository, either the
 	 * SSH version or the HTTPS version, depending on if useSSH is true.
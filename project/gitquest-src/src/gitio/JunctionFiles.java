@@ -0,0 +1,249 @@
+package gitio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+
+import universe.Junction;
+import universe.JunctionOption;
+import universe.Universe;
+
+/**
+ * This class decides how junctions are laid out in a gitquest repository: one
+ * human-readable file per junction, named after its ID, in the junctions
+ * directory. This is the layout ContributionIndex expects. <br>
+ * <br>
+ * A file starts with the title, a "votes:" line, one "author:" line per
+ * author and one "option:" line per option, followed by a blank line and the
+ * text. Every field but the text is escaped (backslash, newline and carriage
+ * return become \\, \n and \r), so that it stays on its own line whatever
+ * it holds. <br>
+ * <br>
+ * The files hold everything about a junction except the votes and authors of
+ * its options, so read() restores a Universe without those.
+ */
+public class JunctionFiles {
+	/** Directory, relative to the repository, holding the junction files. */
+	public static final String JUNCTION_DIR = "junctions";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String VOTES = "votes: ";
+	private static final String AUTHOR = "author: ";
+	private static final String OPTION = "option: ";
+	/** Matches the path of a junction file, capturing the junction's ID. */
+	private static final Pattern FILE_NAME = Pattern.compile(JUNCTION_DIR
+			+ "/(\\d+)\\.txt");
+
+	private JunctionFiles() {
+	}
+
+	/**
+	 * Returns the file holding the given junction in the given repository.
+	 *
+	 * @param repository
+	 *            the root of the repository's working tree.
+	 */
+	public static File getFile(File repository, int junctionID) {
+		return new File(new File(repository, JUNCTION_DIR), junctionID
+				+ ".txt");
+	}
+
+	/**
+	 * Returns the path of the file holding the given junction, relative to the
+	 * root of the repository, as expected by git.
+	 */
+	public static String getPath(int junctionID) {
+		return JUNCTION_DIR + "/" + junctionID + ".txt";
+	}
+
+	/**
+	 * Writes the given junction to its file in the given repository, creating
+	 * the junctions directory if necessary.
+	 *
+	 * @param repository
+	 *            the root of the repository's working tree.
+	 */
+	public static void write(File repository, Junction junction)
+			throws IOException {
+		write(repository, junction.getID(), toText(junction));
+	}
+
+	/**
+	 * Writes text previously returned by toText() to the file of the given
+	 * junction.
+	 *
+	 * @param repository
+	 *            the root of the repository's working tree.
+	 */
+	public static void write(File repository, int junctionID, String text)
+			throws IOException {
+		File file = getFile(repository, junctionID);
+		file.getParentFile().mkdirs();
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), UTF8);
+		try {
+			out.write(text);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the contents of the file of the given junction. The junction is
+	 * locked while it is read, so that concurrent votes don't produce a torn
+	 * file.
+	 */
+	public static String toText(Junction junction) {
+		StringBuilder text = new StringBuilder();
+		synchronized (junction) {
+			text.append(escape(junction.getTitle())).append('\n');
+			text.append(VOTES).append(junction.getVotes()).append('\n');
+			for (String author : junction.getAuthors())
+				text.append(AUTHOR).append(escape(author)).append('\n');
+			for (JunctionOption option : junction.getOptions())
+				text.append(OPTION).append(option.getDestinationID())
+						.append(' ').append(escape(option.getText()))
+						.append('\n');
+			text.append('\n').append(junction.getText()).append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Parses text returned by toText() back into a junction.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the text is not in the format written by toText().
+	 */
+	public static Junction fromText(int junctionID, String text)
+			throws IllegalArgumentException {
+		String[] lines = text.split("\n", -1);
+		if (lines.length < 4 || !lines[1].startsWith(VOTES))
+			throw new IllegalArgumentException("not a junction file");
+		int votes = Integer.parseInt(lines[1].substring(VOTES.length()));
+		ArrayList<String> authors = new ArrayList<String>();
+		int line = 2;
+		for (; line < lines.length && lines[line].startsWith(AUTHOR); line++)
+			authors.add(unescape(lines[line].substring(AUTHOR.length())));
+		ArrayList<JunctionOption> options = new ArrayList<JunctionOption>();
+		for (; line < lines.length && lines[line].startsWith(OPTION); line++) {
+			String option = lines[line].substring(OPTION.length());
+			int space = option.indexOf(' ');
+			if (space < 0)
+				throw new IllegalArgumentException("bad option: " + option);
+			options.add(new JunctionOption(Integer.parseInt(option.substring(
+					0, space)), unescape(option.substring(space + 1))));
+		}
+		// A blank line separates the header from the text, which ends with a
+		// newline.
+		if (line + 2 > lines.length || !lines[line].isEmpty()
+				|| !text.endsWith("\n"))
+			throw new IllegalArgumentException("not a junction file");
+		StringBuilder body = new StringBuilder();
+		for (int i = line + 1; i < lines.length - 1; i++) {
+			if (i > line + 1)
+				body.append('\n');
+			body.append(lines[i]);
+		}
+		return new Junction(junctionID, unescape(lines[0]), body.toString(),
+				votes, authors, options);
+	}
+
+	/** Escapes a field so that it fits on one line. */
+	private static String escape(String field) {
+		return field.replace("\\", "\\\\").replace("\n", "\\n")
+				.replace("\r", "\\r");
+	}
+
+	/**
+	 * Undoes escape().
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the field holds an unknown or unfinished escape.
+	 */
+	private static String unescape(String field)
+			throws IllegalArgumentException {
+		StringBuilder out = new StringBuilder(field.length());
+		for (int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if (c != '\\') {
+				out.append(c);
+				continue;
+			}
+			if (++i == field.length())
+				throw new IllegalArgumentException("unfinished escape");
+			switch (field.charAt(i)) {
+			case '\\':
+				out.append('\\');
+				break;
+			case 'n':
+				out.append('\n');
+				break;
+			case 'r':
+				out.append('\r');
+				break;
+			default:
+				throw new IllegalArgumentException("unknown escape");
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Reads every junction file in the given revision of a repository into a
+	 * new Universe. The junction with the lowest ID becomes the initial node.
+	 * Malformed files are reported and skipped, so that one bad file doesn't
+	 * keep the rest of the Universe from loading.
+	 *
+	 * @param revision
+	 *            e.g. "HEAD"; if it doesn't exist yet, the Universe is empty.
+	 * @throws IOException
+	 *             if the repository can't be read.
+	 */
+	public static Universe read(Repository repository, String revision)
+			throws IOException {
+		TreeMap<Integer, Junction> junctions = new TreeMap<Integer, Junction>();
+		ObjectId commit = repository.resolve(revision);
+		if (commit != null) {
+			RevWalk walk = new RevWalk(repository);
+			TreeWalk tree = new TreeWalk(repository);
+			try {
+				tree.addTree(walk.parseCommit(commit).getTree());
+				tree.setRecursive(true);
+				tree.setFilter(PathFilter.create(JUNCTION_DIR));
+				while (tree.next()) {
+					Matcher m = FILE_NAME.matcher(tree.getPathString());
+					if (!m.matches())
+						continue;
+					int id = Integer.parseInt(m.group(1));
+					String text = new String(repository.open(
+							tree.getObjectId(0)).getBytes(), UTF8);
+					try {
+						junctions.put(id, fromText(id, text));
+					} catch (IllegalArgumentException e) {
+						System.err.println("Skipping malformed junction file "
+								+ tree.getPathString() + ": " + e.getMessage());
+					}
+				}
+			} finally {
+				tree.release();
+				walk.release();
+			}
+		}
+		Universe universe = new Universe();
+		for (Junction junction : junctions.values())
+			universe.addJunction(junction);
+		return universe;
+	}
+}
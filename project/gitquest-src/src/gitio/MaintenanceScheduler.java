@@ -0,0 +1,223 @@
+package gitio;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+
+/**
+ * This class keeps the local repository's object database tidy. Every commit
+ * made through GitRequestHandler leaves loose objects behind, and nothing else
+ * ever packs them. A MaintenanceScheduler periodically counts the loose
+ * objects and pack files in the repository and, once either passes its
+ * threshold, repacks it (with bitmap indexes, where possible) and prunes
+ * the packed loose objects, on a single low-priority background thread. <br>
+ * <br>
+ * None of the methods called by GitRequestHandler wait on maintenance; they at
+ * most queue a check, which is dropped if one is already queued or running.
+ * Refs are never packed, since that would lock them and make concurrent
+ * commits fail.
+ */
+public class MaintenanceScheduler {
+	/** Number of loose objects above which a gc is triggered. */
+	public static final long DEFAULT_LOOSE_OBJECT_THRESHOLD = 6700;
+	/** Number of pack files above which a gc is triggered. */
+	public static final long DEFAULT_PACK_FILE_THRESHOLD = 50;
+	/** Minutes between periodic checks of the repository statistics. */
+	public static final long DEFAULT_CHECK_INTERVAL_MINUTES = 15;
+
+	private final GitRequestHandler handler;
+	private volatile long looseObjectThreshold = DEFAULT_LOOSE_OBJECT_THRESHOLD;
+	private volatile long packFileThreshold = DEFAULT_PACK_FILE_THRESHOLD;
+	private long checkIntervalMinutes = DEFAULT_CHECK_INTERVAL_MINUTES;
+	/** Null unless start() has been called and stop() has not. */
+	private ScheduledExecutorService executor = null;
+	/**
+	 * True while a check is queued or running, so that bursts of commits only
+	 * ever queue one check.
+	 */
+	private final AtomicBoolean checkPending = new AtomicBoolean(false);
+
+	/**
+	 * Creates a scheduler for the repository managed by the given handler. The
+	 * repository is looked up anew on every check, so the handler may clone
+	 * or create its repository after this scheduler has been created.
+	 *
+	 * @param handler
+	 *            the GitRequestHandler whose local repository is maintained.
+	 */
+	MaintenanceScheduler(GitRequestHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Sets the thresholds above which a gc is triggered. Takes effect at the
+	 * next check.
+	 *
+	 * @param looseObjects
+	 *            the number of loose objects tolerated before repacking.
+	 * @param packFiles
+	 *            the number of pack files tolerated before repacking.
+	 */
+	public void setThresholds(long looseObjects, long packFiles)
+			throws IllegalArgumentException {
+		if (looseObjects < 0 || packFiles < 1)
+			throw new IllegalArgumentException();
+		looseObjectThreshold = looseObjects;
+		packFileThreshold = packFiles;
+	}
+
+	/**
+	 * Sets the time between periodic checks. Only takes effect the next time
+	 * start() is called.
+	 *
+	 * @param minutes
+	 *            the number of minutes between checks; must be positive.
+	 */
+	public void setCheckInterval(long minutes) throws IllegalArgumentException {
+		if (minutes <= 0)
+			throw new IllegalArgumentException();
+		checkIntervalMinutes = minutes;
+	}
+
+	/**
+	 * Starts the background thread and the periodic checks. Calling this
+	 * while already started has no effect.
+	 */
+	public synchronized void start() {
+		if (executor != null)
+			return;
+		executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "gitquest-maintenance");
+						// Maintenance must never hold up the JVM, nor steal
+						// time from threads serving players.
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				requestCheck();
+			}
+		}, checkIntervalMinutes, checkIntervalMinutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Stops the background thread. A gc that is already running is allowed to
+	 * finish, since interrupting it could leave temporary pack files behind.
+	 */
+	public synchronized void stop() {
+		if (executor == null)
+			return;
+		executor.shutdown();
+		executor = null;
+		checkPending.set(false);
+	}
+
+	/**
+	 * Queues a check of the repository statistics, unless one is already
+	 * queued or running. Returns immediately; does nothing if the scheduler is
+	 * not started.
+	 */
+	public void requestCheck() {
+		ScheduledExecutorService e;
+		synchronized (this) {
+			e = executor;
+		}
+		if (e == null || !checkPending.compareAndSet(false, true))
+			return;
+		try {
+			e.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						checkAndRepack();
+					} finally {
+						checkPending.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// stop() was called in the meantime.
+			checkPending.set(false);
+		}
+	}
+
+	/**
+	 * Counts loose objects and pack files, and repacks the repository if
+	 * either exceeds its threshold. Refs are left loose. Runs on the
+	 * maintenance thread.
+	 */
+	private void checkAndRepack() {
+		Repository repo = handler.getRepository();
+		// GC only knows how to handle on-disk repositories.
+		if (!(repo instanceof FileRepository)
+				|| !handler.getExistsRepository())
+			return;
+		GC gc = new GC((FileRepository) repo);
+		try {
+			GC.RepoStatistics stats = gc.getStatistics();
+			if (stats.numberOfLooseObjects <= looseObjectThreshold
+					&& stats.numberOfPackFiles <= packFileThreshold)
+				return;
+			configureBitmaps(repo);
+			// This is gc() without packRefs(): packing refs locks every loose
+			// ref, which would make a concurrent stageAndCommit() fail.
+			gc.repack();
+			gc.prune(Collections.<ObjectId> emptySet());
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (ParseException e) {
+			// thrown for a malformed gc.pruneexpire setting.
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Configures the repository to write bitmap indexes when packing, which
+	 * speeds up the object counting done by pushes and pulls. JGit needs the
+	 * JavaEWAH library to build them; without it, bitmaps are explicitly
+	 * turned off, since a gc would otherwise fail halfway through.
+	 */
+	private void configureBitmaps(Repository repo) {
+		boolean build = bitmapsAvailable();
+		StoredConfig config = repo.getConfig();
+		if (config.getBoolean("pack", "buildbitmaps", !build) == build)
+			return;
+		config.setBoolean("pack", null, "buildbitmaps", build);
+		try {
+			config.save();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns true iff the library JGit uses to write bitmap indexes can be
+	 * loaded.
+	 */
+	private static boolean bitmapsAvailable() {
+		try {
+			Class.forName("com.googlecode.javaewah.EWAHCompressedBitmap");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+}
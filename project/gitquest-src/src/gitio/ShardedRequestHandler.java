@@ -0,0 +1,290 @@
+package gitio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import universe.Junction;
+import universe.JunctionOption;
+
+/**
+ * This class spreads a universe over several git repositories ("shards"), each
+ * managed by its own GitRequestHandler. Every junction belongs to exactly one
+ * shard, chosen from its ID by a ShardingStrategy, so commits to junctions in
+ * different shards don't contend on the same ref, and a node only needs to
+ * clone the shards it serves. <br>
+ * <br>
+ * A JunctionOption may lead to a junction in another shard; use
+ * getHandlerFor(JunctionOption) to find the repository holding the
+ * destination.
+ */
+public class ShardedRequestHandler {
+
+	/** Decides which shard a junction belongs to, given its ID. */
+	public interface ShardingStrategy {
+		/**
+		 * Returns the index of the shard holding the junction with the given
+		 * ID; must be in [0, shardCount).
+		 */
+		int shardFor(int junctionID, int shardCount);
+	}
+
+	/**
+	 * Assigns contiguous ranges of IDs to shards. Shard i holds the IDs from
+	 * lowerBounds[i] (inclusive) up to lowerBounds[i + 1] (exclusive); IDs
+	 * below lowerBounds[0] go to shard 0. There must be exactly one bound per
+	 * shard.
+	 */
+	public static class RangeStrategy implements ShardingStrategy {
+		private final int[] lowerBounds;
+
+		/**
+		 * @param lowerBounds
+		 *            the first ID of each shard, in strictly increasing order.
+		 */
+		public RangeStrategy(int... lowerBounds)
+				throws IllegalArgumentException {
+			if (lowerBounds.length == 0)
+				throw new IllegalArgumentException();
+			for (int i = 1; i < lowerBounds.length; i++)
+				if (lowerBounds[i] <= lowerBounds[i - 1])
+					throw new IllegalArgumentException();
+			this.lowerBounds = lowerBounds.clone();
+		}
+
+		/** Returns the number of shards this strategy was given bounds for. */
+		public int getShardCount() {
+			return lowerBounds.length;
+		}
+
+		@Override
+		public int shardFor(int junctionID, int shardCount) {
+			int i = Arrays.binarySearch(lowerBounds, junctionID);
+			// binarySearch returns (-(insertion point) - 1) on a miss, and the
+			// range containing the ID starts just before the insertion point.
+			if (i < 0)
+				i = Math.max(0, -i - 2);
+			if (i >= shardCount)
+				throw new IllegalArgumentException("no shard " + i + " among "
+						+ shardCount);
+			return i;
+		}
+	}
+
+	/**
+	 * Scatters IDs over the shards by hashing them, which keeps the shards
+	 * evenly loaded even though new junctions get increasing IDs.
+	 */
+	public static class HashStrategy implements ShardingStrategy {
+		@Override
+		public int shardFor(int junctionID, int shardCount) {
+			// Fibonacci hashing; consecutive IDs land far apart.
+			int h = junctionID * 0x9E3779B9;
+			h ^= h >>> 16;
+			return ((h % shardCount) + shardCount) % shardCount;
+		}
+	}
+
+	private final List<GitRequestHandler> shards;
+	private final ShardingStrategy strategy;
+	/** Runs the per-shard work of pullAll(), pushAll() and stageAndCommit(). */
+	private final ExecutorService syncPool;
+
+	/**
+	 * Creates a sharded handler over the given repositories. The handlers
+	 * should already be configured (local and remote paths, ssh keys); their
+	 * order defines the shard indices and must not change between runs, or
+	 * junctions will be looked up in the wrong repository.
+	 *
+	 * @param shards
+	 *            one handler per shard; may not be empty.
+	 * @param strategy
+	 *            assigns junctions to shards. A RangeStrategy must have one
+	 *            bound per shard.
+	 */
+	public ShardedRequestHandler(List<GitRequestHandler> shards,
+			ShardingStrategy strategy) throws IllegalArgumentException {
+		if (shards.isEmpty() || strategy == null)
+			throw new IllegalArgumentException();
+		if (strategy instanceof RangeStrategy
+				&& ((RangeStrategy) strategy).getShardCount() != shards.size())
+			throw new IllegalArgumentException(
+					((RangeStrategy) strategy).getShardCount()
+							+ " ranges for " + shards.size() + " shards");
+		this.shards = new ArrayList<GitRequestHandler>(shards);
+		this.strategy = strategy;
+		syncPool = Executors.newFixedThreadPool(this.shards.size(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "gitquest-shard-sync");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	public int getShardCount() {
+		return shards.size();
+	}
+
+	/**
+	 * Returns the index of the shard holding the junction with the given ID.
+	 */
+	public int getShardFor(int junctionID) {
+		return strategy.shardFor(junctionID, shards.size());
+	}
+
+	/**
+	 * Returns the handler of the repository holding the junction with the
+	 * given ID.
+	 */
+	public GitRequestHandler getHandlerFor(int junctionID) {
+		return shards.get(getShardFor(junctionID));
+	}
+
+	public GitRequestHandler getHandlerFor(Junction junction) {
+		return getHandlerFor(junction.getID());
+	}
+
+	/**
+	 * Returns the handler of the repository holding the junction the given
+	 * option leads to, which may differ from that of the junction offering
+	 * the option.
+	 */
+	public GitRequestHandler getHandlerFor(JunctionOption option) {
+		return getHandlerFor(option.getDestinationID());
+	}
+
+	/**
+	 * Returns true iff following the given option from the given junction
+	 * leads into a different shard.
+	 */
+	public boolean isCrossShard(Junction from, JunctionOption option) {
+		return getShardFor(from.getID()) != getShardFor(option
+				.getDestinationID());
+	}
+
+	/**
+	 * Writes the given junctions to their files, each in the repository of
+	 * its own shard, and commits them in those shards, in parallel. Each shard
+	 * gets its own commit with the same metadata, holding only the files of
+	 * the given junctions. Returns true iff every one of those commits was
+	 * made; shards that did commit keep their commits either way.
+	 *
+	 * @param junctions
+	 *            the junctions that were changed.
+	 */
+	public boolean stageAndCommit(Collection<Junction> junctions,
+			final String author, final String email, final String message)
+			throws IOException {
+		// Maps each touched shard to the paths written into it.
+		TreeMap<Integer, List<String>> touched;
+		touched = new TreeMap<Integer, List<String>>();
+		for (Junction junction : junctions) {
+			int shard = getShardFor(junction.getID());
+			JunctionFiles.write(shards.get(shard).getLocalRepositoryPath(),
+					junction);
+			List<String> paths = touched.get(shard);
+			if (paths == null) {
+				paths = new ArrayList<String>();
+				touched.put(shard, paths);
+			}
+			paths.add(JunctionFiles.getPath(junction.getID()));
+		}
+		ArrayList<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+		for (final Map.Entry<Integer, List<String>> entry : touched.entrySet())
+			tasks.add(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return shards.get(entry.getKey()).stageAndCommit(
+							entry.getValue(), author, email, message);
+				}
+			});
+		return runAll(tasks);
+	}
+
+	/**
+	 * Pulls every shard from its remote, in parallel. Returns true iff every
+	 * shard was merged without conflicts.
+	 */
+	public boolean pullAll() throws IOException {
+		ArrayList<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+		for (final GitRequestHandler shard : shards)
+			tasks.add(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws IOException {
+					return shard.pullFromRemote();
+				}
+			});
+		return runAll(tasks);
+	}
+
+	/**
+	 * Pushes every shard to its remote, in parallel. Returns true iff every
+	 * shard was pushed; a shard whose push was rejected should be pulled and
+	 * pushed again.
+	 */
+	public boolean pushAll() throws IOException {
+		ArrayList<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+		for (final GitRequestHandler shard : shards)
+			tasks.add(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws IOException {
+					return shard.pushToRemote();
+				}
+			});
+		return runAll(tasks);
+	}
+
+	/**
+	 * Stops the threads used for parallel syncing. This handler can't sync
+	 * any more afterward, though the per-shard handlers remain usable.
+	 */
+	public void shutdown() {
+		syncPool.shutdown();
+	}
+
+	/**
+	 * Runs the given tasks in parallel and waits for all of them. If any of
+	 * them threw, the first exception is rethrown once all have finished;
+	 * otherwise returns true iff every task returned true.
+	 */
+	private boolean runAll(List<Callable<Boolean>> tasks) throws IOException {
+		List<Future<Boolean>> results;
+		try {
+			results = syncPool.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		IOException failure = null;
+		boolean succeeded = true;
+		for (Future<Boolean> result : results) {
+			try {
+				if (!result.get())
+					succeeded = false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause() instanceof IOException ? (IOException) e
+							.getCause() : new IOException(e.getCause());
+			}
+		}
+		if (failure != null)
+			throw failure;
+		return succeeded;
+	}
+}
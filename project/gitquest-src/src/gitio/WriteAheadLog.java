@@ -0,0 +1,464 @@
+package gitio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+import universe.Junction;
+
+/**
+ * This class keeps contributions and votes safe between git commits. Every
+ * event is appended to a log file and forced to disk before it is
+ * acknowledged, so commits can be batched aggressively without losing work
+ * in a crash. <br>
+ * <br>
+ * Appends are group-committed: a single background thread writes everything
+ * appended since its last write and forces it to disk with one fsync, so the
+ * cost of an fsync is shared by all the events that arrived while the
+ * previous one was in progress. If a write or fsync fails, the log refuses
+ * every further append, since it can no longer tell what made it to disk.
+ * <br>
+ * <br>
+ * Every event gets an increasing sequence number. Once the events up to some
+ * sequence number are safely in git, truncate() drops them from the log; on
+ * startup, getRecoveredEvents() returns what is left, to be replayed on top
+ * of the last commit. Each log file has a random ID, so that commits can say
+ * which log their sequence numbers belong to.
+ */
+public class WriteAheadLog {
+	/** Identifies gitquest log files ("GQL2"). */
+	static final int MAGIC = 0x47514C32;
+	/** Size of the file header: magic number, ID and base sequence. */
+	static final int HEADER_SIZE = 4 + 8 + 8;
+	/** Size of a record's length and checksum fields. */
+	static final int RECORD_HEADER_SIZE = 4 + 4;
+	/** Largest record body accepted when reading a log back. */
+	static final int MAX_RECORD_BODY = 1 << 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** A single contribution or vote. */
+	public static class Event {
+		public static final byte VOTE = 1;
+		public static final byte CONTRIBUTE = 2;
+
+		private long sequence = 0;
+		private final byte type;
+		private final int junctionID;
+		private final boolean up;
+		private final String author;
+
+		private Event(byte type, int junctionID, boolean up, String author) {
+			this.type = type;
+			this.junctionID = junctionID;
+			this.up = up;
+			this.author = author;
+		}
+
+		/**
+		 * Creates an up- or downvote on the given junction, attributed to the
+		 * given voter.
+		 */
+		public static Event vote(int junctionID, boolean up, String voter) {
+			return new Event(VOTE, junctionID, up, voter);
+		}
+
+		/** Creates the addition of an author to the given junction. */
+		public static Event contribute(int junctionID, String author) {
+			return new Event(CONTRIBUTE, junctionID, false, author);
+		}
+
+		/**
+		 * Returns the position of this event in the log, or 0 if it hasn't
+		 * been appended yet.
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		public int getJunctionID() {
+			return junctionID;
+		}
+
+		public String getAuthor() {
+			return author;
+		}
+
+		/**
+		 * Applies this event to the given junction, as it was applied when the
+		 * event happened.
+		 */
+		public void applyTo(Junction junction) {
+			synchronized (junction) {
+				if (type == CONTRIBUTE)
+					junction.addAuthor(author);
+				else if (up)
+					junction.upVote();
+				else
+					junction.downVote();
+			}
+		}
+
+		private ByteBuffer encode(long sequence) {
+			byte[] name = author.getBytes(UTF8);
+			int bodySize = 8 + 1 + 4 + 1 + 4 + name.length;
+			ByteBuffer body = ByteBuffer.allocate(bodySize);
+			body.putLong(sequence).put(type).putInt(junctionID)
+					.put((byte) (up ? 1 : 0)).putInt(name.length).put(name);
+			CRC32 crc = new CRC32();
+			crc.update(body.array());
+			ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE
+					+ bodySize);
+			record.putInt(bodySize).putInt((int) crc.getValue())
+					.put(body.array());
+			record.flip();
+			return record;
+		}
+
+		private static Event decode(ByteBuffer body) {
+			long sequence = body.getLong();
+			byte type = body.get();
+			int junctionID = body.getInt();
+			boolean up = body.get() != 0;
+			byte[] name = new byte[body.getInt()];
+			body.get(name);
+			Event event = new Event(type, junctionID, up, new String(name,
+					UTF8));
+			event.sequence = sequence;
+			return event;
+		}
+	}
+
+	/** Told when an appended event has been forced to disk (or has failed). */
+	public interface Listener {
+		/**
+		 * Called on the log's background thread, which it must not hold up.
+		 *
+		 * @param failure
+		 *            null if the event is durable, else the reason it isn't.
+		 */
+		void onDurable(Event event, IOException failure);
+	}
+
+	private final File file;
+	/** Identifies this log among all the logs committed to a repository. */
+	private final long id;
+	/** Every event before this sequence number has been truncated. */
+	private volatile long base;
+	/** Guards channel, which truncate() replaces. */
+	private final Object ioLock = new Object();
+	private FileChannel channel;
+	/** The sequence number the next appended event gets. */
+	private long nextSequence;
+	/** Events found in the file when it was opened, oldest first. */
+	private final List<Event> recovered;
+	/** Records appended but not yet written, with their listeners. */
+	private ArrayList<ByteBuffer> pendingRecords = new ArrayList<ByteBuffer>();
+	private ArrayList<Event> pendingEvents = new ArrayList<Event>();
+	private ArrayList<Listener> pendingListeners = new ArrayList<Listener>();
+	private boolean closing = false;
+	/** The error that made the log unusable, or null while it is healthy. */
+	private IOException failure = null;
+	private final Thread flusher;
+
+	/**
+	 * Opens the log in the given file, creating it with a new random ID if
+	 * necessary. Events left in the file become available through
+	 * getRecoveredEvents(); a record cut short by a crash is discarded.
+	 */
+	public WriteAheadLog(File file) throws IOException {
+		this.file = file;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (channel.size() < HEADER_SIZE) {
+			writeHeader(channel, new SecureRandom().nextLong(), 1);
+			channel.force(true);
+		}
+		// Makes sure the file itself survives a crash, whether it was just
+		// created or renamed into place by a truncate() before a crash.
+		forceDirectory();
+		ArrayList<Event> events = new ArrayList<Event>();
+		long[] header = read(channel, events);
+		id = header[0];
+		base = header[1];
+		recovered = events;
+		nextSequence = events.isEmpty() ? base : Math.max(base,
+				events.get(events.size() - 1).sequence + 1);
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "gitquest-log");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Returns the ID of this log, as 16 hexadecimal digits.
+	 */
+	public String getID() {
+		return String.format("%016x", id);
+	}
+
+	/**
+	 * Returns the lowest sequence number that may still be in the log. Every
+	 * event before it was truncated, so it must be in git already; 1 if the
+	 * log was never truncated.
+	 */
+	public long getBaseSequence() {
+		return base;
+	}
+
+	/**
+	 * Returns the events that were in the log when it was opened, oldest
+	 * first. Those already committed to git should be skipped; see
+	 * AsyncCommitter.recover().
+	 */
+	public List<Event> getRecoveredEvents() {
+		return new ArrayList<Event>(recovered);
+	}
+
+	/**
+	 * Gives the event the next sequence number and queues it to be written.
+	 * Returns immediately; the listener (if any) is told once the event is on
+	 * disk.
+	 *
+	 * @return the sequence number of the event.
+	 * @throws IOException
+	 *             if the log is closed, or has failed to write an earlier
+	 *             event.
+	 */
+	public synchronized long append(Event event, Listener listener)
+			throws IOException {
+		if (closing)
+			throw new IOException("log closed");
+		if (failure != null)
+			throw new IOException("log failed", failure);
+		ByteBuffer record = event.encode(nextSequence);
+		// A record too big to be read back would hide every later one.
+		if (record.remaining() - RECORD_HEADER_SIZE > MAX_RECORD_BODY)
+			throw new IllegalArgumentException("event too large");
+		event.sequence = nextSequence++;
+		pendingRecords.add(record);
+		pendingEvents.add(event);
+		pendingListeners.add(listener);
+		notifyAll();
+		return event.sequence;
+	}
+
+	/**
+	 * Like append(), but waits until the event is on disk.
+	 */
+	public long appendAndWait(Event event) throws IOException,
+			InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final IOException[] failure = new IOException[1];
+		long sequence = append(event, new Listener() {
+			@Override
+			public void onDurable(Event event, IOException e) {
+				failure[0] = e;
+				done.countDown();
+			}
+		});
+		done.await();
+		if (failure[0] != null)
+			throw failure[0];
+		return sequence;
+	}
+
+	/**
+	 * Drops every event up to and including the given sequence number, e.g.
+	 * once they have been committed to git. The log is rewritten to a
+	 * temporary file which then replaces it, so a crash part way through
+	 * leaves either the old or the new log.
+	 */
+	public void truncate(long upTo) throws IOException {
+		synchronized (ioLock) {
+			File temp = new File(file.getPath() + ".tmp");
+			FileChannel out = FileChannel.open(temp.toPath(),
+					StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE);
+			long newBase;
+			try {
+				ArrayList<Event> events = new ArrayList<Event>();
+				newBase = Math.max(read(channel, events)[1], upTo + 1);
+				writeHeader(out, id, newBase);
+				for (Event event : events) {
+					if (event.sequence <= upTo)
+						continue;
+					ByteBuffer record = event.encode(event.sequence);
+					while (record.hasRemaining())
+						out.write(record);
+				}
+				out.force(true);
+			} finally {
+				out.close();
+			}
+			channel.close();
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			// Until the rename is on disk, a crash could bring back the old
+			// file and lose the events appended to the new one.
+			forceDirectory();
+			channel = FileChannel.open(file.toPath(),
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			channel.position(channel.size());
+			base = newBase;
+		}
+	}
+
+	/**
+	 * Writes out the events already appended, then closes the file.
+	 */
+	public void close() throws IOException, InterruptedException {
+		synchronized (this) {
+			closing = true;
+			notifyAll();
+		}
+		flusher.join();
+		synchronized (ioLock) {
+			channel.close();
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			ArrayList<ByteBuffer> records;
+			ArrayList<Event> events;
+			ArrayList<Listener> listeners;
+			IOException failed;
+			synchronized (this) {
+				while (pendingRecords.isEmpty() && !closing) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						closing = true;
+					}
+				}
+				if (pendingRecords.isEmpty())
+					return;
+				records = pendingRecords;
+				events = pendingEvents;
+				listeners = pendingListeners;
+				pendingRecords = new ArrayList<ByteBuffer>();
+				pendingEvents = new ArrayList<Event>();
+				pendingListeners = new ArrayList<Listener>();
+				failed = failure;
+			}
+			// After a failure, the end of the file is unknown, so records
+			// appended before it was noticed must not be written after it.
+			if (failed == null) {
+				try {
+					synchronized (ioLock) {
+						ByteBuffer[] buffers = records
+								.toArray(new ByteBuffer[records.size()]);
+						while (buffers[buffers.length - 1].hasRemaining())
+							channel.write(buffers);
+						channel.force(false);
+					}
+				} catch (IOException e) {
+					failed = e;
+					synchronized (this) {
+						failure = e;
+					}
+				}
+			}
+			for (int i = 0; i < listeners.size(); i++)
+				if (listeners.get(i) != null)
+					listeners.get(i).onDurable(events.get(i), failed);
+		}
+	}
+
+	/**
+	 * Forces the directory holding the log to disk, so that the log's
+	 * directory entry is durable.
+	 */
+	private void forceDirectory() throws IOException {
+		FileChannel dir = FileChannel.open(file.getAbsoluteFile()
+				.getParentFile().toPath(), StandardOpenOption.READ);
+		try {
+			dir.force(true);
+		} finally {
+			dir.close();
+		}
+	}
+
+	private static void writeHeader(FileChannel out, long id, long base)
+			throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putLong(id).putLong(base);
+		header.flip();
+		out.position(0);
+		while (header.hasRemaining())
+			out.write(header);
+	}
+
+	/**
+	 * Reads the log from the start, decoding every valid record into events.
+	 * Anything after the last valid record is cut off, and the channel is left
+	 * positioned at the end.
+	 *
+	 * @return the ID and the base sequence number from the header.
+	 */
+	private long[] read(FileChannel in, List<Event> events)
+			throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(in, header, 0);
+		header.flip();
+		if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+			throw new IOException(file + " is not a gitquest log");
+		long id = header.getLong();
+		long base = header.getLong();
+		long position = HEADER_SIZE;
+		ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		while (true) {
+			recordHeader.clear();
+			if (readFully(in, recordHeader, position) < RECORD_HEADER_SIZE)
+				break;
+			recordHeader.flip();
+			int size = recordHeader.getInt();
+			int checksum = recordHeader.getInt();
+			if (size <= 0 || size > MAX_RECORD_BODY)
+				break;
+			ByteBuffer body = ByteBuffer.allocate(size);
+			if (readFully(in, body, position + RECORD_HEADER_SIZE) < size)
+				break;
+			CRC32 crc = new CRC32();
+			crc.update(body.array());
+			if ((int) crc.getValue() != checksum)
+				break;
+			body.flip();
+			Event event = Event.decode(body);
+			events.add(event);
+			position += RECORD_HEADER_SIZE + size;
+		}
+		if (in.size() > position)
+			in.truncate(position);
+		in.position(position);
+		return new long[] { id, base };
+	}
+
+	private static int readFully(FileChannel in, ByteBuffer buf, long position)
+			throws IOException {
+		int total = 0;
+		while (buf.hasRemaining()) {
+			int n = in.read(buf, position + total);
+			if (n < 0)
+				break;
+			total += n;
+		}
+		return total;
+	}
+}
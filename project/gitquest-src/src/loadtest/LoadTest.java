@@ -0,0 +1,341 @@
+package loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand.ResetType;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.RepositoryState;
+
+import gitio.GitRequestHandler;
+import gitio.JunctionFiles;
+import universe.Junction;
+import universe.Universe;
+import universe.UniverseGenerator;
+
+/**
+ * This class measures how the git layer holds up under many concurrent
+ * contributors, without touching the live remotes. It generates a synthetic
+ * Universe, creates a bare repository to act as the remote, and has a number
+ * of simulated authors and voters (each with their own clone and
+ * GitRequestHandler) commit and push changes to random junctions. Rejected
+ * pushes are retried after a pull, as a real client would; if the pull
+ * conflicts, the clone is reset to the remote and the change made again. <br>
+ * <br>
+ * At the end it reports throughput, latency percentiles of whole operations
+ * (from the change to its successful push), the rate of rejected pushes and
+ * the number of conflicted merges.
+ * <br>
+ * <br>
+ * Usage: java loadtest.LoadTest [--name=value ...]; see main() for the
+ * options.
+ */
+public class LoadTest {
+	private final UniverseGenerator generator = new UniverseGenerator();
+	/** The text length settings, kept so that they can be set one by one. */
+	private int textMedian = 500;
+	private double textSigma = 0.5;
+	private long seed = 0;
+	private int seedFiles = 1000;
+	private int authors = 4;
+	private int voters = 4;
+	private int operationsPerWorker = 50;
+	private int maxRetries = 10;
+	private File workDir = null;
+
+	private Universe universe;
+	/** Latencies of successful operations, in nanoseconds. */
+	private final List<Long> latencies = new ArrayList<Long>();
+	private long pushAttempts = 0;
+	private long rejectedPushes = 0;
+	private long conflictedMerges = 0;
+	private long failedOperations = 0;
+	/** Wall-clock duration of the simulated traffic, in nanoseconds. */
+	private long elapsed = 0;
+
+	/**
+	 * Runs a load test configured by command line options of the form
+	 * --name=value:
+	 * <ul>
+	 * <li>junctions: number of junctions in the universe (default 1000)</li>
+	 * <li>branching: average number of options per junction (default 3)</li>
+	 * <li>text-median: median text length in characters (default 500)</li>
+	 * <li>text-sigma: spread of the log-normal text length (default 0.5)</li>
+	 * <li>seed: seed for all randomness (default 0)</li>
+	 * <li>seed-files: junctions written to the remote before starting
+	 * (default 1000)</li>
+	 * <li>authors, voters: number of simulated users of each kind (default 4)
+	 * </li>
+	 * <li>ops: operations per simulated user (default 50)</li>
+	 * <li>retries: pushes attempted per operation before giving up (default
+	 * 10)</li>
+	 * <li>dir: working directory (default: a new temporary directory)</li>
+	 * </ul>
+	 */
+	public static void main(String[] args) throws Exception {
+		LoadTest test = new LoadTest();
+		for (String arg : args) {
+			if (!arg.matches("--[a-z-]+=.+"))
+				throw new IllegalArgumentException("Bad option: " + arg);
+			String name = arg.substring(2, arg.indexOf('='));
+			String value = arg.substring(arg.indexOf('=') + 1);
+			test.setOption(name, value);
+		}
+		test.run();
+		test.printReport();
+	}
+
+	/**
+	 * Sets one of the options described in main().
+	 */
+	public void setOption(String name, String value)
+			throws IllegalArgumentException {
+		switch (name) {
+		case "junctions":
+			generator.setJunctionCount(Integer.parseInt(value));
+			break;
+		case "branching":
+			generator.setBranchingFactor(Integer.parseInt(value));
+			break;
+		case "text-median":
+		case "text-sigma":
+			textMedian = name.equals("text-median") ? Integer.parseInt(value)
+					: textMedian;
+			textSigma = name.equals("text-sigma") ? Double.parseDouble(value)
+					: textSigma;
+			generator.setTextLength(textMedian, textSigma);
+			break;
+		case "seed":
+			seed = Long.parseLong(value);
+			generator.setSeed(seed);
+			break;
+		case "seed-files":
+			seedFiles = Integer.parseInt(value);
+			break;
+		case "authors":
+			authors = Integer.parseInt(value);
+			break;
+		case "voters":
+			voters = Integer.parseInt(value);
+			break;
+		case "ops":
+			operationsPerWorker = Integer.parseInt(value);
+			break;
+		case "retries":
+			maxRetries = Integer.parseInt(value);
+			break;
+		case "dir":
+			workDir = new File(value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option: " + name);
+		}
+	}
+
+	/**
+	 * Generates the universe, sets up the remote and the clones, and runs the
+	 * simulated users until each has completed its operations.
+	 */
+	public void run() throws IOException, GitAPIException,
+			InterruptedException {
+		if (workDir == null)
+			workDir = Files.createTempDirectory("gitquest-loadtest").toFile();
+		long start = System.nanoTime();
+		universe = generator.generate();
+		System.out.printf("Generated %d junctions in %.1f s%n",
+				universe.getJunctionCount(), seconds(System.nanoTime() - start));
+
+		File remote = new File(workDir, "remote.git");
+		Git.init().setBare(true).setDirectory(remote).call();
+		String remoteURI = remote.toURI().toString().replaceFirst("^file:/+",
+				"file:///");
+		seedRemote(remoteURI);
+
+		int workers = authors + voters;
+		final CountDownLatch ready = new CountDownLatch(workers);
+		final CountDownLatch go = new CountDownLatch(1);
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < workers; i++) {
+			final Worker worker = new Worker(i, i < authors, remoteURI);
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						try {
+							worker.cloneRemote();
+						} finally {
+							// Don't hold up the other workers if this fails.
+							ready.countDown();
+						}
+						go.await();
+						worker.work();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}, worker.name);
+			threads.add(t);
+			t.start();
+		}
+		ready.await();
+		start = System.nanoTime();
+		go.countDown();
+		for (Thread t : threads)
+			t.join();
+		elapsed = System.nanoTime() - start;
+	}
+
+	/**
+	 * Prints the results of run().
+	 */
+	public void printReport() {
+		long[] sorted;
+		synchronized (this) {
+			sorted = new long[latencies.size()];
+			for (int i = 0; i < sorted.length; i++)
+				sorted[i] = latencies.get(i);
+		}
+		Arrays.sort(sorted);
+		System.out.printf("Operations: %d succeeded, %d failed in %.1f s%n",
+				sorted.length, failedOperations, seconds(elapsed));
+		System.out.printf("Throughput: %.2f ops/s%n", sorted.length
+				/ seconds(elapsed));
+		if (sorted.length > 0)
+			System.out.printf(
+					"Latency (ms): p50 %.1f, p90 %.1f, p99 %.1f, max %.1f%n",
+					percentile(sorted, 50), percentile(sorted, 90),
+					percentile(sorted, 99), sorted[sorted.length - 1] / 1e6);
+		System.out.printf("Pushes: %d attempted, %d rejected (%.1f%%)%n",
+				pushAttempts, rejectedPushes, pushAttempts == 0 ? 0.0
+						: 100.0 * rejectedPushes / pushAttempts);
+		System.out.printf("Merges: %d conflicted%n", conflictedMerges);
+	}
+
+	/**
+	 * Writes the first seedFiles junctions to a new repository and pushes it
+	 * to the remote, so that the simulated users start from a non-trivial
+	 * history.
+	 */
+	private void seedRemote(String remoteURI) throws IOException {
+		GitRequestHandler seeder = new GitRequestHandler(new File(workDir,
+				"seed").getAbsolutePath());
+		seeder.createNewRepository();
+		seeder.setRemoteRepositoryPath(remoteURI, false);
+		int count = Math.min(seedFiles, universe.getJunctionCount());
+		for (int id = 0; id < count; id++)
+			JunctionFiles.write(seeder.getLocalRepositoryPath(),
+					universe.getJunction(id));
+		// A first commit is needed even without seed files, so that there is
+		// a branch to clone.
+		new File(seeder.getLocalRepositoryPath(), ".gitquest").createNewFile();
+		seeder.stageAndCommit("seed", "seed@gitquest.invalid", "Seed universe");
+		if (!seeder.pushToRemote())
+			throw new IOException("Could not seed " + remoteURI);
+	}
+
+	private synchronized void record(long latency, int attempts,
+			int conflicts, boolean pushed) {
+		pushAttempts += attempts;
+		rejectedPushes += pushed ? attempts - 1 : attempts;
+		conflictedMerges += conflicts;
+		if (pushed)
+			latencies.add(latency);
+		else
+			failedOperations++;
+	}
+
+	private static double percentile(long[] sorted, int p) {
+		int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, i)] / 1e6;
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	/**
+	 * A simulated user, with their own clone of the remote. Authors add
+	 * themselves to a junction, voters vote on one; both then commit the
+	 * changed junction file and push it. When pulling someone else's change
+	 * to the same file conflicts, the clone is reset to the remote, and the
+	 * junction, which already holds both changes, is written and committed
+	 * again.
+	 */
+	private class Worker {
+		private final String name;
+		private final boolean author;
+		private final String remoteURI;
+		private final Random random;
+		private GitRequestHandler handler;
+		/** The clone, for resetting it after a conflicted merge. */
+		private Git git;
+
+		Worker(int index, boolean author, String remoteURI) {
+			this.name = (author ? "author-" : "voter-") + index;
+			this.author = author;
+			this.remoteURI = remoteURI;
+			this.random = new Random(seed + index + 1);
+		}
+
+		void cloneRemote() throws IOException {
+			handler = new GitRequestHandler(new File(workDir, name)
+					.getAbsolutePath());
+			handler.setRemoteRepositoryPath(remoteURI, false);
+			handler.cloneFromRemote();
+			git = Git.open(handler.getLocalRepositoryPath());
+		}
+
+		void work() throws IOException, GitAPIException {
+			for (int op = 0; op < operationsPerWorker; op++) {
+				long start = System.nanoTime();
+				Junction junction = universe.getJunction(random
+						.nextInt(universe.getJunctionCount()));
+				synchronized (junction) {
+					if (author)
+						junction.addAuthor(name);
+					else if (random.nextInt(4) == 0)
+						junction.downVote();
+					else
+						junction.upVote();
+				}
+				commit(junction);
+				int attempts = 0;
+				int conflicts = 0;
+				boolean pushed = false;
+				while (!pushed && attempts < maxRetries) {
+					attempts++;
+					pushed = handler.pushToRemote();
+					if (!pushed && !handler.pullFromRemote()) {
+						RepositoryState state = git.getRepository()
+								.getRepositoryState();
+						if (state == RepositoryState.MERGING)
+							conflicts++;
+						// The pull fetched the remote tip even if it couldn't
+						// merge it.
+						git.reset().setMode(ResetType.HARD)
+								.setRef(Constants.R_REMOTES + "origin/"
+										+ git.getRepository().getBranch())
+								.call();
+						commit(junction);
+					}
+				}
+				record(System.nanoTime() - start, attempts, conflicts, pushed);
+			}
+		}
+
+		private void commit(Junction junction) throws IOException {
+			JunctionFiles.write(handler.getLocalRepositoryPath(), junction);
+			handler.stageAndCommit(name, name + "@gitquest.invalid",
+					(author ? "Edit junction " : "Vote on junction ")
+							+ junction.getID());
+		}
+	}
+}
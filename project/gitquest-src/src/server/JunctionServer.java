@@ -0,0 +1,480 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import gitio.AsyncCommitter;
+import gitio.WriteAheadLog;
+import universe.Junction;
+import universe.JunctionOption;
+import universe.Universe;
+
+/**
+ * This class serves a Universe to players over the network, using the
+ * protocol described in Protocol. <br>
+ * <br>
+ * All connections are handled by a single thread with a non-blocking
+ * selector, so idle players cost a few kilobytes rather than a thread each.
+ * Reads are answered from the in-memory Universe: every junction is encoded
+ * once into a direct buffer, and later requests for it write that same buffer
+ * to the socket without copying it. Read buffers are pooled between
+ * connections. <br>
+ * <br>
+ * Votes and contributions are handed to an AsyncCommitter (if any) to be
+ * committed to git in the background. If the committer has a WriteAheadLog,
+ * they are only applied in memory and acknowledged once they are logged, and
+ * not at all if logging fails; later responses on the same connection wait
+ * for them, so that responses stay in order. Without a committer, or without
+ * a log, they are applied straight away.
+ */
+public class JunctionServer {
+	/** Size of the pooled per-connection read buffers. */
+	static final int READ_BUFFER_SIZE = Protocol.HEADER_SIZE
+			+ Protocol.MAX_REQUEST_BODY;
+	/** Number of idle read buffers kept for reuse. */
+	static final int MAX_POOLED_BUFFERS = 256;
+	/**
+	 * Number of responses queued on a connection above which its requests
+	 * are no longer read, until the client catches up.
+	 */
+	static final int MAX_QUEUED_RESPONSES = 64;
+	/** Default number of encoded junctions kept in memory. */
+	public static final int DEFAULT_MAX_CACHED_JUNCTIONS = 100000;
+	/** Author name given to git for anonymous votes. */
+	static final String VOTER = "voter";
+
+	private static final ByteBuffer OK = Protocol.encodeStatus(Protocol.OK);
+	private static final ByteBuffer NOT_FOUND = Protocol
+			.encodeStatus(Protocol.NOT_FOUND);
+	private static final ByteBuffer BAD_REQUEST = Protocol
+			.encodeStatus(Protocol.BAD_REQUEST);
+	private static final ByteBuffer REFUSED = Protocol
+			.encodeStatus(Protocol.REFUSED);
+	private static final ByteBuffer FAILED = Protocol
+			.encodeStatus(Protocol.FAILED);
+
+	private final Universe universe;
+	private final AsyncCommitter committer;
+	/** Encoded OK responses for junctions, by junction ID. */
+	private final ConcurrentHashMap<Integer, ByteBuffer> encoded = new ConcurrentHashMap<>();
+	private int maxCachedJunctions = DEFAULT_MAX_CACHED_JUNCTIONS;
+	/** Idle read buffers; only touched by the selector thread. */
+	private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<ByteBuffer>();
+	/** Connections with responses that were completed off the server thread. */
+	private final ConcurrentLinkedQueue<SelectionKey> completed = new ConcurrentLinkedQueue<SelectionKey>();
+	private Selector selector = null;
+	private ServerSocketChannel serverChannel = null;
+	private Thread thread = null;
+	/** Set by stop() to make the server thread shut down. */
+	private volatile boolean stopping = false;
+
+	/** A response, which may not be known yet. */
+	private static class Response {
+		/** Null until the response is known. */
+		volatile ByteBuffer buffer;
+
+		Response(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	/** The state of one client connection. */
+	private static class Connection {
+		final SocketChannel channel;
+		/** Holds partially received requests; null while nothing is pending. */
+		ByteBuffer in = null;
+		/** Responses not yet (fully) written, oldest first. */
+		final ArrayDeque<Response> out = new ArrayDeque<Response>();
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * Creates a server for the given Universe. The Universe must not have
+	 * junctions added or removed while the server is running.
+	 *
+	 * @param committer
+	 *            receives every changed junction; may be null, in which case
+	 *            changes only live in memory.
+	 */
+	public JunctionServer(Universe universe, AsyncCommitter committer) {
+		this.universe = universe;
+		this.committer = committer;
+	}
+
+	/**
+	 * Sets how many encoded junctions are kept in memory. Junctions beyond
+	 * this are encoded anew for every request.
+	 */
+	public void setMaxCachedJunctions(int max) throws IllegalArgumentException {
+		if (max < 0)
+			throw new IllegalArgumentException();
+		maxCachedJunctions = max;
+	}
+
+	/**
+	 * Starts listening on the given address and serving connections on a new
+	 * thread.
+	 *
+	 * @return the address actually bound, e.g. to find out the port chosen
+	 *         when port 0 was given.
+	 */
+	public synchronized InetSocketAddress start(InetSocketAddress address)
+			throws IOException {
+		if (thread != null)
+			throw new IllegalStateException("already started");
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(address, 1024);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		stopping = false;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "gitquest-server");
+		thread.start();
+		return (InetSocketAddress) serverChannel.socket()
+				.getLocalSocketAddress();
+	}
+
+	/**
+	 * Stops the server thread, waiting for it to close every connection and
+	 * stop listening. Changes already handed to the committer are not
+	 * affected.
+	 */
+	public void stop() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			t = thread;
+			if (t == null)
+				return;
+			thread = null;
+			stopping = true;
+			selector.wakeup();
+		}
+		t.join();
+	}
+
+	/**
+	 * Drops the encoded copy of a junction. Must be called whenever a junction
+	 * is changed other than through this server.
+	 */
+	public void invalidate(int junctionID) {
+		encoded.remove(junctionID);
+	}
+
+	private void loop() {
+		try {
+			while (!stopping) {
+				selector.select();
+				if (stopping)
+					break;
+				SelectionKey done;
+				while ((done = completed.poll()) != null) {
+					try {
+						if (done.isValid())
+							write(done);
+					} catch (IOException e) {
+						close(done);
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (key.isAcceptable())
+							accept();
+						else {
+							if (key.isReadable())
+								read(key);
+							if (key.isValid() && key.isWritable())
+								write(key);
+						}
+					} catch (IOException e) {
+						// Usually a client hanging up; only that connection
+						// is affected.
+						close(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Closes every client connection, returning its read buffer to the pool,
+	 * then the selector and the listening channel. Runs on the server thread,
+	 * which owns the pool.
+	 */
+	private void shutdown() {
+		// Canceled keys stay in the key set until the next select, so closing
+		// them doesn't disturb the iteration.
+		for (SelectionKey key : selector.keys())
+			if (key.attachment() instanceof Connection)
+				close(key);
+		completed.clear();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.register(selector, SelectionKey.OP_READ, new Connection(
+					channel));
+		}
+	}
+
+	/**
+	 * Reads what the client sent and answers every complete request in it.
+	 */
+	private void read(SelectionKey key) throws IOException {
+		Connection conn = (Connection) key.attachment();
+		if (conn.in == null)
+			conn.in = acquireBuffer();
+		if (conn.channel.read(conn.in) < 0) {
+			close(key);
+			return;
+		}
+		ByteBuffer in = conn.in;
+		in.flip();
+		while (in.remaining() >= Protocol.HEADER_SIZE) {
+			byte opcode = in.get(in.position());
+			int length = in.getInt(in.position() + 1);
+			if (length < 0 || length > Protocol.MAX_REQUEST_BODY) {
+				close(key);
+				return;
+			}
+			if (in.remaining() < Protocol.HEADER_SIZE + length)
+				break;
+			ByteBuffer body = in.duplicate();
+			body.position(in.position() + Protocol.HEADER_SIZE);
+			body.limit(body.position() + length);
+			in.position(body.limit());
+			conn.out.add(handle(key, opcode, body));
+		}
+		in.compact();
+		// Idle connections don't need to hold on to a buffer.
+		if (in.position() == 0) {
+			releaseBuffer(in);
+			conn.in = null;
+		}
+		write(key);
+	}
+
+	/**
+	 * Writes as many queued responses as the socket takes, up to the first
+	 * one that isn't known yet, with a single gathering write, and adjusts the
+	 * connection's interest in reading and writing accordingly.
+	 */
+	private void write(SelectionKey key) throws IOException {
+		Connection conn = (Connection) key.attachment();
+		ArrayList<ByteBuffer> ready = new ArrayList<ByteBuffer>();
+		for (Response response : conn.out) {
+			if (response.buffer == null)
+				break;
+			ready.add(response.buffer);
+		}
+		if (!ready.isEmpty()) {
+			conn.channel.write(ready.toArray(new ByteBuffer[ready.size()]));
+			while (!conn.out.isEmpty() && conn.out.peek().buffer != null
+					&& !conn.out.peek().buffer.hasRemaining())
+				conn.out.poll();
+		}
+		int ops = 0;
+		if (conn.out.size() < MAX_QUEUED_RESPONSES)
+			ops |= SelectionKey.OP_READ;
+		// Responses that aren't known yet are written once they complete.
+		if (!conn.out.isEmpty() && conn.out.peek().buffer != null)
+			ops |= SelectionKey.OP_WRITE;
+		key.interestOps(ops);
+	}
+
+	private void close(SelectionKey key) {
+		Connection conn = (Connection) key.attachment();
+		key.cancel();
+		try {
+			conn.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (conn.in != null) {
+			releaseBuffer(conn.in);
+			conn.in = null;
+		}
+	}
+
+	/**
+	 * Answers a single request. The response's buffer is a fresh duplicate, so
+	 * it can be consumed by the connection without affecting other ones.
+	 */
+	private Response handle(SelectionKey key, byte opcode, ByteBuffer body) {
+		Response response = new Response(null);
+		ByteBuffer answer = answer(key, opcode, body, response);
+		// Otherwise, the answer is filled in once it's known.
+		if (answer != null)
+			response.buffer = answer;
+		return response;
+	}
+
+	/**
+	 * Returns the answer to a request, or null if the answer will be filled
+	 * into response later.
+	 */
+	private ByteBuffer answer(SelectionKey key, byte opcode, ByteBuffer body,
+			Response response) {
+		try {
+			Junction junction = universe.getJunction(body.getInt());
+			if (junction == null)
+				return NOT_FOUND.duplicate();
+			switch (opcode) {
+			case Protocol.GET:
+				return encoded(junction);
+			case Protocol.CHOOSE: {
+				int index = body.getInt();
+				ArrayList<JunctionOption> options = junction.getOptions();
+				if (index < 0 || index >= options.size())
+					return BAD_REQUEST.duplicate();
+				Junction destination = universe.getJunction(options.get(index)
+						.getDestinationID());
+				if (destination == null)
+					return NOT_FOUND.duplicate();
+				return encoded(destination);
+			}
+			case Protocol.VOTE: {
+				boolean up = body.get() != 0;
+				return change(key, junction,
+						WriteAheadLog.Event.vote(junction.getID(), up, VOTER),
+						response);
+			}
+			case Protocol.CONTRIBUTE: {
+				String author = Protocol.readString(body);
+				if (!Protocol.isValidAuthor(author))
+					return BAD_REQUEST.duplicate();
+				// Mirrors the check in Junction.addAuthor().
+				if (junction.bIsMutable())
+					return REFUSED.duplicate();
+				return change(key, junction,
+						WriteAheadLog.Event.contribute(junction.getID(), author),
+						response);
+			}
+			default:
+				return BAD_REQUEST.duplicate();
+			}
+		} catch (BufferUnderflowException e) {
+			return BAD_REQUEST.duplicate();
+		} catch (IllegalArgumentException e) {
+			return BAD_REQUEST.duplicate();
+		}
+	}
+
+	/**
+	 * Returns a duplicate of the encoded junction, encoding (and, if there is
+	 * room, caching) it first if necessary.
+	 */
+	private ByteBuffer encoded(Junction junction) {
+		ByteBuffer buf = encoded.get(junction.getID());
+		if (buf == null) {
+			// Changes are applied and invalidated on the committer's threads;
+			// holding the junction keeps a stale encoding out of the cache.
+			synchronized (junction) {
+				buf = Protocol.encodeJunction(junction);
+				if (encoded.size() < maxCachedJunctions)
+					encoded.put(junction.getID(), buf);
+			}
+		}
+		return buf.duplicate();
+	}
+
+	/**
+	 * Hands a change to a junction to the committer, which applies it once it
+	 * is durable. Returns the answer if it is known straight away; otherwise
+	 * returns null and fills in response once the change is durable.
+	 */
+	private ByteBuffer change(final SelectionKey key, final Junction junction,
+			WriteAheadLog.Event event, final Response response) {
+		if (committer == null) {
+			event.applyTo(junction);
+			invalidate(junction.getID());
+			return OK.duplicate();
+		}
+		// Set once this method returns; until then, the listener leaves the
+		// answer for this method to return.
+		final boolean[] returned = { false };
+		final ByteBuffer[] early = { null };
+		try {
+			committer.apply(junction, event, new WriteAheadLog.Listener() {
+				@Override
+				public void onDurable(WriteAheadLog.Event event,
+						IOException failure) {
+					ByteBuffer answer = FAILED.duplicate();
+					if (failure == null) {
+						invalidate(junction.getID());
+						answer = OK.duplicate();
+					}
+					synchronized (returned) {
+						if (!returned[0]) {
+							early[0] = answer;
+							return;
+						}
+					}
+					response.buffer = answer;
+					completed.add(key);
+					selector.wakeup();
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+			early[0] = FAILED.duplicate();
+		}
+		synchronized (returned) {
+			returned[0] = true;
+			return early[0];
+		}
+	}
+
+	private ByteBuffer acquireBuffer() {
+		ByteBuffer buf = bufferPool.poll();
+		if (buf == null)
+			buf = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		return buf;
+	}
+
+	private void releaseBuffer(ByteBuffer buf) {
+		buf.clear();
+		if (bufferPool.size() < MAX_POOLED_BUFFERS)
+			bufferPool.push(buf);
+	}
+}
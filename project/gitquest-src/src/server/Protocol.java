@@ -0,0 +1,137 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import universe.Junction;
+import universe.JunctionOption;
+
+/**
+ * This class defines the binary protocol spoken by JunctionServer. <br>
+ * <br>
+ * Every request and every response is a frame: a one-byte code (the opcode of
+ * a request, or the status of a response), a four-byte big-endian body
+ * length, and the body. Request bodies are:
+ * <ul>
+ * <li>GET: int junctionID</li>
+ * <li>CHOOSE: int junctionID, int optionIndex; answered with the destination
+ * junction</li>
+ * <li>VOTE: int junctionID, byte up (1) or down (0)</li>
+ * <li>CONTRIBUTE: int junctionID, string author; see isValidAuthor()</li>
+ * </ul>
+ * GET and CHOOSE are answered with an OK frame holding a junction: int id,
+ * int votes, string title, string text, int optionCount, then per option int
+ * destinationID, int votes, string text. VOTE and CONTRIBUTE are answered
+ * with an empty OK frame once the change is durable; only then is it
+ * visible to GET and CHOOSE. That holds only if the server's committer has a
+ * WriteAheadLog: without a committer, or with one that has no log, changes
+ * are applied and answered straight away, and live only in memory until
+ * (if ever) they are committed. Strings are an int byte count followed by
+ * UTF-8. Responses always come in the order of the requests.
+ */
+public final class Protocol {
+	public static final byte GET = 1;
+	public static final byte CHOOSE = 2;
+	public static final byte VOTE = 3;
+	public static final byte CONTRIBUTE = 4;
+
+	public static final byte OK = 0;
+	public static final byte NOT_FOUND = 1;
+	public static final byte BAD_REQUEST = 2;
+	/** The junction can't be changed, e.g. because it has too many votes. */
+	public static final byte REFUSED = 3;
+	/** The change could not be saved, so it was not applied. */
+	public static final byte FAILED = 4;
+
+	/** Size of the code and length that start every frame. */
+	public static final int HEADER_SIZE = 5;
+	/** Largest request body a server accepts. */
+	public static final int MAX_REQUEST_BODY = 4096;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Protocol() {
+	}
+
+	/**
+	 * Encodes a complete OK response holding the given junction into a new
+	 * direct buffer, ready to be written to any number of channels through
+	 * duplicates.
+	 */
+	static ByteBuffer encodeJunction(Junction junction) {
+		byte[] title;
+		byte[] text;
+		int votes;
+		ArrayList<JunctionOption> options;
+		synchronized (junction) {
+			title = junction.getTitle().getBytes(UTF8);
+			text = junction.getText().getBytes(UTF8);
+			votes = junction.getVotes();
+			options = junction.getOptions();
+		}
+		ArrayList<byte[]> optionTexts = new ArrayList<byte[]>();
+		int size = 4 + 4 + 4 + title.length + 4 + text.length + 4;
+		for (JunctionOption option : options) {
+			byte[] optionText = option.getText().getBytes(UTF8);
+			optionTexts.add(optionText);
+			size += 4 + 4 + 4 + optionText.length;
+		}
+		ByteBuffer buf = ByteBuffer.allocateDirect(HEADER_SIZE + size);
+		buf.put(OK).putInt(size);
+		buf.putInt(junction.getID()).putInt(votes);
+		buf.putInt(title.length).put(title);
+		buf.putInt(text.length).put(text);
+		buf.putInt(options.size());
+		for (int i = 0; i < options.size(); i++) {
+			buf.putInt(options.get(i).getDestinationID());
+			buf.putInt(options.get(i).getVotes());
+			buf.putInt(optionTexts.get(i).length).put(optionTexts.get(i));
+		}
+		buf.flip();
+		return buf.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns a read-only, body-less response with the given status.
+	 */
+	static ByteBuffer encodeStatus(byte status) {
+		ByteBuffer buf = ByteBuffer.allocateDirect(HEADER_SIZE);
+		buf.put(status).putInt(0);
+		buf.flip();
+		return buf.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns true iff the given name may be contributed as an author: it must
+	 * not be blank, and must hold no control characters, "&lt;" or "&gt;"
+	 * (which would corrupt the commit's author line) and no ", " (which
+	 * separates authors when they are listed).
+	 */
+	static boolean isValidAuthor(String author) {
+		if (author.trim().isEmpty() || author.contains(", ")
+				|| author.indexOf('<') >= 0 || author.indexOf('>') >= 0)
+			return false;
+		for (int i = 0; i < author.length(); i++)
+			if (Character.isISOControl(author.charAt(i)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Reads a string from the given request body.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the body holds no well-formed string.
+	 */
+	static String readString(ByteBuffer body) throws IllegalArgumentException {
+		if (body.remaining() < 4)
+			throw new IllegalArgumentException();
+		int length = body.getInt();
+		if (length < 0 || length > body.remaining())
+			throw new IllegalArgumentException();
+		byte[] bytes = new byte[length];
+		body.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -1,6 +1,7 @@
 package universe;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author dalt6282
@@ -46,7 +47,12 @@ public class Junction implements AuthorContribution
 	 *            addAuthor  - adds a new author to the Junction if permitted.
 	 *            upVote     - upvotes the Junction.
 	 *            downVote   - downvotes the Junction.
-	 *            Junction   - constructor for the class, takes ID argument.
+	 *            getID      - returns the ID of the Junction.
+	 *            getTitle   - returns the title of the Junction.
+	 *            getText    - returns the text of the Junction.
+	 *            getOptions - returns a copy of the arraylist of options.
+	 *            Junction   - constructor for the class, takes ID argument, or
+	 *                         every member, e.g. to restore a saved Junction.
 	 *            HashCode	 - returns the mID of this object to simplify storage in a hash table.
 	 */
 	
@@ -131,6 +137,42 @@ public class Junction implements AuthorContribution
 		mVotes--;
 	}
 	
+	/**
+	 * Purpose: A getter for the ID of this Junction.
+	 * @return - the unique int identifying this Junction in its Universe.
+	 */
+	public int getID ()
+	{
+		return mID;
+	}
+	
+	/**
+	 * Purpose: A getter for the title of this Junction.
+	 * @return - the string players use to refer to this Junction.
+	 */
+	public String getTitle ()
+	{
+		return mTitle;
+	}
+	
+	/**
+	 * Purpose: A getter for the text of this Junction.
+	 * @return - the string describing what happens at this Junction.
+	 */
+	public String getText ()
+	{
+		return mText;
+	}
+	
+	/**
+	 * Purpose: A getter for the options available from this Junction.
+	 * @return - an arraylist of the JunctionOptions available to the player.
+	 */
+	public ArrayList<JunctionOption> getOptions ()
+	{
+		return new ArrayList<JunctionOption> (mPlayerOptions);
+	}
+	
 	/**
 	 * Purpose: Construct a Junction object. Takes an ID supplied (presumably) by
 	 *          the Universe object that created it.
@@ -147,6 +189,29 @@ public class Junction implements AuthorContribution
 		mTitle = "";
 		mVotes = 0;
 	}
+
+	/**
+	 * Purpose: Construct a Junction object with the given contents, e.g. as
+	 *          read back from a repository. The authors are taken as they
+	 *          are, however many votes the Junction has.
+	 * @param id      - the ID of the Junction.
+	 * @param title   - the title of the Junction.
+	 * @param text    - the text of the Junction.
+	 * @param votes   - the (signed) number of votes on the Junction.
+	 * @param authors - the authors of the Junction; copied.
+	 * @param options - the options available from the Junction; copied.
+	 */
+	public Junction (int id, String title, String text, int votes,
+			List<String> authors, List<JunctionOption> options)
+	{
+		mID = id;
+		mTitle = title;
+		mText = text;
+		mVotes = votes;
+		mAuthors = new ArrayList<String> (authors);
+		mPlayerOptions = new ArrayList<JunctionOption> (options);
+	}
+
 	/**
 	 * Purpose: Return a uniquely-identifying value for this Junction instance.
 	 * @author NaOH
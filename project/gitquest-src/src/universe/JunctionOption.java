@@ -34,7 +34,11 @@ public class JunctionOption implements AuthorContribution
 	 *            addAuthor      - adds new author to JunctionOption if allowed.
 	 *            upVote         - upvotes the JunctionOption.
 	 *            downVote       - downvotes the JunctionOption.
-	 *            JunctionOption - creates a new JunctionOption.
+	 *            getDestinationID - returns the ID of the Junction this
+	 *                             option leads to.
+	 *            getText        - returns the text of the JunctionOption.
+	 *            JunctionOption - creates a new JunctionOption, empty or
+	 *                             leading to a given Junction.
 	 */
 	
 	/**
@@ -118,6 +122,24 @@ public class JunctionOption implements AuthorContribution
 		mVotes--;
 	}
 
+	/**
+	 * Purpose: A getter for the Junction this option leads to.
+	 * @return - the ID of the destination Junction.
+	 */
+	public int getDestinationID ()
+	{
+		return mDestinationID;
+	}
+
+	/**
+	 * Purpose: A getter for the text of this JunctionOption.
+	 * @return - the string describing what choice this represents.
+	 */
+	public String getText ()
+	{
+		return mText;
+	}
+
 	/**
 	 * Purpose: Create a JunctionOption object.
 	 * @author dalt6282
@@ -130,4 +152,17 @@ public class JunctionOption implements AuthorContribution
 		mText = "";
 		mVotes = 0;
 	}
+
+	/**
+	 * Purpose: Create a JunctionOption leading to the given Junction.
+	 * @param destinationID - the ID of the Junction the option leads to.
+	 * @param text          - the string describing what choice this
+	 *                        represents.
+	 */
+	public JunctionOption (int destinationID, String text)
+	{
+		this ();
+		mDestinationID = destinationID;
+		mText = text;
+	}
 }
@@ -1,13 +1,74 @@
 package universe;
 
+import java.util.HashMap;
 import java.util.HashSet;
 
 public class Universe 
 {
 	/*
 	 * Members: mJunctionList	- Contains the set of all Junctions in this Universe. 
+	 * 			mJunctionsByID	- Maps the ID of each Junction in mJunctionList to 
+	 * 							  the Junction, so options can be followed quickly.
 	 * 			mInitialNode	- Provides the entryway into the graph structure.
 	 */
 	HashSet<Junction> mJunctionList = new HashSet<>();
+	HashMap<Integer, Junction> mJunctionsByID = new HashMap<>();
 	Junction mInitialNode;
-}
\ No newline at end of file
+	
+	/*
+	 * (non-Javadoc)
+	 * Functions: addJunction      - adds a Junction to the Universe.
+	 *            getJunction      - looks up a Junction by its ID.
+	 *            getJunctionCount - returns the number of Junctions.
+	 *            getInitialNode   - returns the entryway into the graph.
+	 */
+	
+	/**
+	 * Purpose: Adds a Junction to this Universe. The first Junction added 
+	 *          becomes the initial node. A Junction with the same ID as one 
+	 *          already in the Universe replaces it.
+	 * @param junction - the Junction to be added.
+	 */
+	public void addJunction (Junction junction)
+	{
+		Junction old = mJunctionsByID.put (junction.mID, junction);
+		if (old != null)
+		{
+			mJunctionList.remove (old);
+		}
+		mJunctionList.add (junction);
+		if (mInitialNode == null || mInitialNode == old)
+		{
+			mInitialNode = junction;
+		}
+	}
+	
+	/**
+	 * Purpose: Looks up a Junction of this Universe by its ID.
+	 * @param id - the ID of the Junction, e.g. a JunctionOption's destination.
+	 * @return - the Junction, or null if there is none with this ID.
+	 */
+	public Junction getJunction (int id)
+	{
+		return mJunctionsByID.get (id);
+	}
+	
+	/**
+	 * Purpose: A getter for the size of this Universe.
+	 * @return - the number of Junctions in this Universe.
+	 */
+	public int getJunctionCount ()
+	{
+		return mJunctionList.size ();
+	}
+	
+	/**
+	 * Purpose: A getter for the entryway into this Universe.
+	 * @return - the Junction players start at, or null if the Universe is 
+	 *           empty.
+	 */
+	public Junction getInitialNode ()
+	{
+		return mInitialNode;
+	}
+}
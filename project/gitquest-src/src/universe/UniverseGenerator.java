@@ -0,0 +1,167 @@
+package universe;
+
+import java.util.Random;
+
+/**
+ *
+ */
+public class UniverseGenerator
+{
+	/*
+	 * Members: mJunctionCount   - number of Junctions to generate.
+	 *          mBranchingFactor - average number of JunctionOptions per
+	 *                             Junction.
+	 *          mMedianTextLength - median length, in characters, of the text
+	 *                             of a Junction.
+	 *          mTextLengthSigma - spread of the (log-normal) text length
+	 *                             distribution; 0 makes every text the same
+	 *                             length.
+	 *          mRandom          - source of randomness, seeded so that runs
+	 *                             can be repeated.
+	 */
+	int mJunctionCount = 1000;
+	int mBranchingFactor = 3;
+	int mMedianTextLength = 500;
+	double mTextLengthSigma = 0.5;
+	Random mRandom = new Random (0);
+
+	/*
+	 * (non-Javadoc)
+	 * Functions: setJunctionCount   - sets the number of Junctions.
+	 *            setBranchingFactor - sets the average number of options.
+	 *            setTextLength      - sets the text length distribution.
+	 *            setSeed            - sets the seed of the generator.
+	 *            generate           - builds a new Universe.
+	 */
+
+	/**
+	 * Purpose: Sets the number of Junctions in generated Universes.
+	 * @param count - the number of Junctions; must be positive.
+	 */
+	public void setJunctionCount (int count)
+	{
+		if (count <= 0)
+		{
+			throw new IllegalArgumentException ();
+		}
+		mJunctionCount = count;
+	}
+
+	/**
+	 * Purpose: Sets the average number of JunctionOptions per Junction. The
+	 *          actual number is drawn uniformly between 0 and twice this,
+	 *          except that every Junction but the last always has an option
+	 *          leading to the next Junction; its number is drawn between 1
+	 *          and 2 * factor - 1 instead, or is 1 if factor is 0.
+	 * @param factor - the average number of options; must not be negative.
+	 */
+	public void setBranchingFactor (int factor)
+	{
+		if (factor < 0)
+		{
+			throw new IllegalArgumentException ();
+		}
+		mBranchingFactor = factor;
+	}
+
+	/**
+	 * Purpose: Sets the distribution of the length of Junction texts, which is
+	 *          log-normal: most texts are short, and a few are very long.
+	 * @param median - the median length in characters; must be positive.
+	 * @param sigma  - the standard deviation of the log of the length.
+	 */
+	public void setTextLength (int median, double sigma)
+	{
+		if (median <= 0 || sigma < 0)
+		{
+			throw new IllegalArgumentException ();
+		}
+		mMedianTextLength = median;
+		mTextLengthSigma = sigma;
+	}
+
+	/**
+	 * Purpose: Sets the seed of the generator. Two generators with the same
+	 *          seed and settings generate the same Universe.
+	 * @param seed - the seed.
+	 */
+	public void setSeed (long seed)
+	{
+		mRandom = new Random (seed);
+	}
+
+	/**
+	 * Purpose: Builds a new Universe. Junctions get the IDs 0 to
+	 *          mJunctionCount - 1, and Junction 0 is the initial node. Every
+	 *          Junction other than the initial node can be reached from the
+	 *          Junction before it, so the whole Universe is playable.
+	 * @return - the generated Universe.
+	 */
+	public Universe generate ()
+	{
+		Universe universe = new Universe ();
+		for (int id = 0; id < mJunctionCount; id++)
+		{
+			Junction junction = new Junction (id);
+			junction.mTitle = "Junction " + id;
+			junction.mText = randomText (textLength ());
+			junction.mAuthors.add ("author" + mRandom.nextInt (100));
+			// The option leading to the next Junction counts toward the
+			// branching factor.
+			int options;
+			if (id + 1 < mJunctionCount)
+			{
+				junction.mPlayerOptions.add (option (id + 1));
+				options = mBranchingFactor > 0
+						? mRandom.nextInt (2 * mBranchingFactor - 1) : 0;
+			}
+			else
+			{
+				options = mRandom.nextInt (2 * mBranchingFactor + 1);
+			}
+			for (int i = 0; i < options; i++)
+			{
+				junction.mPlayerOptions.add (option (mRandom.nextInt (mJunctionCount)));
+			}
+			universe.addJunction (junction);
+		}
+		return universe;
+	}
+
+	/**
+	 * Purpose: Creates a JunctionOption leading to the given Junction.
+	 * @param destination - the ID of the Junction the option leads to.
+	 */
+	JunctionOption option (int destination)
+	{
+		JunctionOption option = new JunctionOption ();
+		option.mDestinationID = destination;
+		option.mText = "Go to junction " + destination;
+		option.mAuthors.add ("author" + mRandom.nextInt (100));
+		return option;
+	}
+
+	/**
+	 * Purpose: Draws a text length from the log-normal distribution.
+	 */
+	int textLength ()
+	{
+		double length = mMedianTextLength
+				* Math.exp (mTextLengthSigma * mRandom.nextGaussian ());
+		return (int) Math.max (1, Math.min (length, 1 << 20));
+	}
+
+	/**
+	 * Purpose: Generates filler text of the given length, made of lowercase
+	 *          "words" separated by spaces.
+	 */
+	String randomText (int length)
+	{
+		char[] text = new char[length];
+		for (int i = 0; i < length; i++)
+		{
+			text[i] = mRandom.nextInt (6) == 0 ? ' ' : (char) ('a' + mRandom.nextInt (26));
+		}
+		return new String (text);
+	}
+}